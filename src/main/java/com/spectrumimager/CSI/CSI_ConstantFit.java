@@ -1,40 +1,56 @@
 package com.spectrumimager.CSI;
 
-import org.ujmp.core.DenseMatrix;
-import org.ujmp.core.Matrix;
-
 /*
  * Fit class for a constant function.
  */
-class CSI_ConstantFit extends CSI_Fit {
+public class CSI_ConstantFit extends CSI_Fit {
+	public String getName() {
+		return "Constant";
+	}
+
 	@Override
-	Matrix createFit(double[] x, Matrix y, int start, int end) {
-		int s = end - start;
-		long col = y.getColumnCount();
-		Matrix m = DenseMatrix.Factory.zeros(s, 1);
-		Matrix n = DenseMatrix.Factory.zeros(s, col);
-		Matrix coeffs = DenseMatrix.Factory.zeros(1, col);
-
-		for (int k = 0; k < s; k++) {
-			m.setAsDouble(1, k, 0);
-			for (int i = 0; i < col; i++) {
-				n.setAsDouble(fy(y.getAsDouble(k + start, i)), k, i);
+	public double[][] fit(final double[] xWindow, final float[] spectra, int count, final CSI_FitQuality quality) {
+		final int s = xWindow.length;
+		final double[] c0 = new double[count];
+		final double[][] coeffs = new double[][] { c0, new double[count] };
+
+		// The least squares constant is the mean over the window
+		CSI_FitExecutor.forEachChunk(count, new CSI_FitExecutor.Chunk() {
+			public void run(int from, int to) {
+				double sum;
+				for (int p = from; p < to; p++) {
+					sum = 0;
+					for (int k = 0, o = p * s; k < s; k++, o++) {
+						sum += fy(spectra[o]);
+					}
+					c0[p] = sum / Math.max(s, 1);
+					coeffs[1][p] = c0[p];
+					if (quality != null)
+						quality.add(p, 1, xWindow, spectra, p * s, CSI_ConstantFit.this, coeffs);
+				}
 			}
-		}
-
-		coeffs = m.solve(n);
-		
-		// Basically stolen from the abstract class, since we don't really know
-		// how to define the residual for a constant fit
-		this.Residual = m.mtimes(coeffs).minus(n);
-		
-		return (DenseMatrix.Factory.ones(2, 1)).mtimes(coeffs);
+		});
+
+		return coeffs;
 	}
 
 	protected double getFitAtX(double c0, double c1, double xi) {
 		return c0;
 	}
 
+	protected double getFitAtFx(double c0, double c1, double fxi) {
+		return c0;
+	}
+
+	FitSum getFitSum(double[] x, int from, int to) {
+		final int n = to - from;
+		return new FitSum() {
+			double sum(double c0, double c1) {
+				return c0 * n;
+			}
+		};
+	}
+
 	protected double fx(double xi) {
 		return 0;
 	}
@@ -42,4 +58,4 @@ class CSI_ConstantFit extends CSI_Fit {
 	protected double fy(double yi) {
 		return yi;
 	}
-}
\ No newline at end of file
+}
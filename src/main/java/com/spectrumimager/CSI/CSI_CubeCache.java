@@ -0,0 +1,220 @@
+package com.spectrumimager.CSI;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import ij.IJ;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/*
+ * Keeps a float copy of each open dataset with one spectrum after the other
+ * (cube[p * size + k] with p = width * j + i), so operations read whole
+ * spectra from one array instead of going through the stack slice by slice.
+ * A cube is built once per dataset and dropped when the image is closed or
+ * edited, as CSI_EditCounter tells; the least recently used ones are
+ * dropped once the cache holds more than MEMORY_FRACTION of ImageJ's memory.
+ * Datasets too large for that are not copied at all and are processed tile
+ * by tile from the stack instead. The copy is made outside the cache's lock,
+ * by the first caller asking for it while later ones wait for it, so other
+ * datasets are served meanwhile.
+ */
+class CSI_CubeCache implements ImageListener {
+	static final double MEMORY_FRACTION = 0.25;
+
+	private static final LinkedHashMap<Integer, Entry> cubes = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+	// Cubes being copied
+	private static final HashMap<Integer, Building> building = new HashMap<Integer, Building>();
+	private static long bytes;
+	private static CSI_CubeCache listener;
+
+	private static class Entry {
+		final ImageStack stack;
+		final float[] cube;
+		final int edits;
+
+		Entry(ImageStack stack, float[] cube, int edits) {
+			this.stack = stack;
+			this.cube = cube;
+			this.edits = edits;
+		}
+	}
+
+	private static class Building {
+		final ImageStack stack;
+		final int edits;
+		final FutureTask<float[]> task;
+
+		Building(final ImageStack stack, int edits) {
+			this.stack = stack;
+			this.edits = edits;
+			task = new FutureTask<float[]>(new Callable<float[]>() {
+				public float[] call() {
+					int n = stack.getWidth() * stack.getHeight();
+					float[] cube = new float[n * stack.getSize()];
+					copy(stack, 0, n, 0, stack.getSize(), cube, stack.getSize(), 0);
+					return cube;
+				}
+			});
+		}
+	}
+
+	/*
+	 * Returns the cube of img, building it if needed, or null if it would
+	 * not fit in the cache.
+	 */
+	static float[] get(ImagePlus img) {
+		Integer id = img.getID();
+		ImageStack stack = img.getStack();
+		Building b;
+		boolean mine = false;
+		synchronized (CSI_CubeCache.class) {
+			int edits = CSI_EditCounter.getCount(img);
+			Entry entry = cubes.get(id);
+			// A new stack set on the same image is a different dataset
+			if (entry != null && entry.stack == stack && entry.edits == edits)
+				return entry.cube;
+			if (entry != null)
+				remove(id);
+
+			long cap = (long) (IJ.maxMemory() * MEMORY_FRACTION);
+			long n = (long) stack.getWidth() * stack.getHeight();
+			if (4L * n * stack.getSize() > cap || n * stack.getSize() > Integer.MAX_VALUE)
+				return null;
+			b = building.get(id);
+			if (b == null || b.stack != stack || b.edits != edits) {
+				if (listener == null) {
+					listener = new CSI_CubeCache();
+					CSI_EditCounter.addListener(listener);
+				}
+				b = new Building(stack, edits);
+				building.put(id, b);
+				mine = true;
+			}
+		}
+
+		if (mine)
+			b.task.run();
+		float[] cube;
+		try {
+			cube = b.task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			synchronized (CSI_CubeCache.class) {
+				if (building.get(id) == b)
+					building.remove(id);
+			}
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw (RuntimeException) e.getCause();
+		}
+		if (!mine)
+			return cube;
+
+		synchronized (CSI_CubeCache.class) {
+			// Not kept if the image was closed or edited meanwhile
+			if (building.get(id) != b)
+				return cube;
+			building.remove(id);
+			cubes.put(id, new Entry(stack, cube, b.edits));
+			bytes += 4L * cube.length;
+			long cap = (long) (IJ.maxMemory() * MEMORY_FRACTION);
+			Iterator<Entry> it = cubes.values().iterator();
+			while (bytes > cap && it.hasNext()) {
+				Entry e = it.next();
+				if (e.cube == cube)
+					continue;
+				bytes -= 4L * e.cube.length;
+				it.remove();
+			}
+		}
+		return cube;
+	}
+
+	static synchronized boolean contains(ImagePlus img) {
+		Entry entry = cubes.get(img.getID());
+		return entry != null && entry.stack == img.getStack() && entry.edits == CSI_EditCounter.getCount(img);
+	}
+
+	/*
+	 * Copies slices [start, end) of pixels [first, last) of stack into dest,
+	 * which holds s channels per pixel from pixel first on, starting at
+	 * channel offset of each pixel. Reads the pixel arrays directly where the
+	 * type allows.
+	 */
+	static void copy(final ImageStack stack, final int first, int last, final int start, final int end,
+			final float[] dest, final int s, final int offset) {
+		CSI_FitExecutor.Chunk chunk = new CSI_FitExecutor.Chunk() {
+			public void run(int from, int to) {
+				Object pixels;
+				for (int k = start; k < end; k++) {
+					pixels = stack.getPixels(k + 1);
+					int o = from * s + offset + k - start;
+					if (pixels instanceof float[]) {
+						float[] f = (float[]) pixels;
+						for (int p = first + from; p < first + to; p++, o += s)
+							dest[o] = f[p];
+					} else if (pixels instanceof short[]) {
+						short[] h = (short[]) pixels;
+						for (int p = first + from; p < first + to; p++, o += s)
+							dest[o] = h[p] & 0xffff;
+					} else if (pixels instanceof byte[]) {
+						byte[] b = (byte[]) pixels;
+						for (int p = first + from; p < first + to; p++, o += s)
+							dest[o] = b[p] & 0xff;
+					} else {
+						ImageProcessor ip = stack.getProcessor(k + 1);
+						for (int p = first + from; p < first + to; p++, o += s)
+							dest[o] = ip.getf(p);
+					}
+				}
+			}
+		};
+		// Every chunk reads every slice, which a virtual stack would load
+		// from disk each time
+		if (stack.isVirtual())
+			chunk.run(0, last - first);
+		else
+			CSI_FitExecutor.forEachChunk(last - first, chunk);
+	}
+
+	private static void remove(int imageID) {
+		Entry e = cubes.remove(imageID);
+		if (e != null)
+			bytes -= 4L * e.cube.length;
+	}
+
+	static synchronized void invalidate(ImagePlus img) {
+		remove(img.getID());
+		building.remove(img.getID());
+	}
+
+	public void imageOpened(ImagePlus imp) {
+	}
+
+	public void imageClosed(ImagePlus imp) {
+		invalidate(imp);
+	}
+
+	// Called by CSI_EditCounter once an update is counted as an edit, so
+	// scrolling through the stack keeps the cube.
+	public void imageUpdated(ImagePlus imp) {
+		synchronized (CSI_CubeCache.class) {
+			int edits = CSI_EditCounter.getCount(imp);
+			Entry entry = cubes.get(imp.getID());
+			Building b = building.get(imp.getID());
+			if (entry != null && entry.edits != edits)
+				remove(imp.getID());
+			if (b != null && b.edits != edits)
+				building.remove(imp.getID());
+		}
+	}
+}
@@ -333,9 +333,13 @@ public class CSI_DM3_Reader extends ImagePlus implements PlugIn
 		if(debugLevel>1) IJ.write("Calculated offset = "+fi.offset);
 		if(debugLevel>1) IJ.write("Chosen image = "+chosenImage);
 
-		// Open the image!
-		FileOpener fo = new FileOpener(fi);
-		ImagePlus imp = fo.open(false);
+		// Open the image! Spectrum images too large for the heap are mapped
+		// from the file instead of loaded
+		ImagePlus imp = CSI_MappedStack.openIfLarge(fi, fileName);
+		if (imp == null) {
+			FileOpener fo = new FileOpener(fi);
+			imp = fo.open(false);
+		}
 		//if(debugLevel>5) if(imp==null) IJ.write("Image load failed!");
 
 		// Write out the contents of the storedTags list
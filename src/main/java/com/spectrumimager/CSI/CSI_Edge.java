@@ -0,0 +1,66 @@
+package com.spectrumimager.CSI;
+
+/*
+ * One edge of a multi-edge map: a background window [fitStart, fitEnd) and
+ * an integration window [intStart, intEnd), in channels, and the model the
+ * background is fit with. Edges are written one per line as
+ * "fitStart fitEnd intStart intEnd fit name", with the windows in calibrated
+ * units.
+ */
+class CSI_Edge {
+	final int fitStart, fitEnd, intStart, intEnd;
+	final CSI_FitModel fit;
+
+	CSI_Edge(int fitStart, int fitEnd, int intStart, int intEnd, CSI_FitModel fit) {
+		this.fitStart = fitStart;
+		this.fitEnd = fitEnd;
+		this.intStart = intStart;
+		this.intEnd = intEnd;
+		this.fit = fit;
+	}
+
+	/*
+	 * Reads an edge from a line, with x the energy of each channel. Throws
+	 * IllegalArgumentException naming the problem if the line is not valid.
+	 */
+	static CSI_Edge parse(String line, double[] x) {
+		String[] words = line.trim().split("\\s+", 5);
+		if (words.length < 5)
+			throw new IllegalArgumentException("Expected four energies and a fit: " + line);
+		int[] channels = new int[4];
+		for (int i = 0; i < 4; i++) {
+			try {
+				channels[i] = channel(Double.parseDouble(words[i]), x);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Not an energy: " + words[i]);
+			}
+		}
+		CSI_FitModel fit = CSI_FitModels.get(words[4].trim());
+		if (!fit.getName().equals(words[4].trim()))
+			throw new IllegalArgumentException("Unknown fit: " + words[4].trim());
+		if (channels[3] <= channels[2])
+			throw new IllegalArgumentException("Empty window: " + line);
+		// The fits need two channels to work with
+		if (channels[1] - channels[0] < 2)
+			throw new IllegalArgumentException("Background window narrower than 2 channels: " + line);
+		return new CSI_Edge(channels[0], channels[1], channels[2], channels[3], fit);
+	}
+
+	/*
+	 * Nearest channel to energy e.
+	 */
+	static int channel(double e, double[] x) {
+		double step = x.length > 1 ? x[1] - x[0] : 1;
+		long k = Math.round((e - x[0]) / step);
+		return (int) Math.max(0, Math.min(x.length - 1, k));
+	}
+
+	/*
+	 * The edge as a line that parse() reads back to the same channels. The
+	 * energies are written in full, as at small dispersions rounding them
+	 * would move the windows by channels.
+	 */
+	String format(double[] x) {
+		return x[fitStart] + " " + x[fitEnd] + " " + x[intStart] + " " + x[intEnd] + " " + fit.getName();
+	}
+}
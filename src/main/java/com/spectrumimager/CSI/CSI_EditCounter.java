@@ -0,0 +1,134 @@
+package com.spectrumimager.CSI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/*
+ * Counts the edits made to the open datasets, so that caches built from an
+ * image can tell whether it has been edited since. ImageJ only marks an
+ * image as changed, and keeps the mark after the first edit, while updates
+ * also come from scrolling through the stack and from display changes. So a
+ * checksum of each slice is kept as it is shown, and an update that finds
+ * the slice shown with a different checksum, or a new stack set on the
+ * image, counts as an edit. Edits are made to the slice shown, which the
+ * image was updated to show before, so they are all seen. Images are counted
+ * from the first call to getCount() on.
+ *
+ * Only this listener checks the slice, once per update. Caches register with
+ * addListener() rather than with ImagePlus: they are told of a closed image,
+ * and of an update only once it has been counted as an edit, so the count
+ * they then compare with is already current.
+ */
+class CSI_EditCounter implements ImageListener {
+	private static final HashMap<Integer, Record> records = new HashMap<Integer, Record>();
+	private static CSI_EditCounter listener;
+	private static final ArrayList<ImageListener> listeners = new ArrayList<ImageListener>();
+
+	private static class Record {
+		ImageStack stack;
+		final HashMap<Integer, Integer> checksums = new HashMap<Integer, Integer>();
+		int count;
+	}
+
+	/*
+	 * The edits of img seen so far. Caches keep the count from before they
+	 * read the image and compare it with the current one.
+	 */
+	static synchronized int getCount(ImagePlus img) {
+		Record r = records.get(img.getID());
+		if (r == null) {
+			start();
+			r = new Record();
+			records.put(img.getID(), r);
+			check(img, r);
+		}
+		return r.count;
+	}
+
+	/*
+	 * Tells l of every closed image and of every update found to be an
+	 * edit, after counting it.
+	 */
+	static synchronized void addListener(ImageListener l) {
+		start();
+		if (!listeners.contains(l))
+			listeners.add(l);
+	}
+
+	static synchronized void removeListener(ImageListener l) {
+		listeners.remove(l);
+	}
+
+	private static void start() {
+		if (listener == null) {
+			listener = new CSI_EditCounter();
+			ImagePlus.addImageListener(listener);
+		}
+	}
+
+	/*
+	 * Checks the slice shown, returning whether it counted an edit.
+	 */
+	private static boolean check(ImagePlus img, Record r) {
+		int count = r.count;
+		ImageStack stack = img.getStack();
+		if (stack != r.stack) {
+			if (r.stack != null)
+				r.count++;
+			r.stack = stack;
+			r.checksums.clear();
+		}
+		int n = img.getCurrentSlice();
+		if (n >= 1 && n <= stack.getSize()) {
+			Integer sum = checksum(stack.getPixels(n));
+			Integer old = r.checksums.put(n, sum);
+			if (old != null && !old.equals(sum))
+				r.count++;
+		}
+		return r.count != count;
+	}
+
+	private static int checksum(Object pixels) {
+		if (pixels instanceof float[])
+			return Arrays.hashCode((float[]) pixels);
+		if (pixels instanceof short[])
+			return Arrays.hashCode((short[]) pixels);
+		if (pixels instanceof byte[])
+			return Arrays.hashCode((byte[]) pixels);
+		if (pixels instanceof int[])
+			return Arrays.hashCode((int[]) pixels);
+		return 0;
+	}
+
+	public void imageOpened(ImagePlus imp) {
+	}
+
+	// The caches are called outside the lock, as they take their own and
+	// call getCount() under it
+	public void imageClosed(ImagePlus imp) {
+		ImageListener[] ls;
+		synchronized (CSI_EditCounter.class) {
+			records.remove(imp.getID());
+			ls = listeners.toArray(new ImageListener[listeners.size()]);
+		}
+		for (ImageListener l : ls)
+			l.imageClosed(imp);
+	}
+
+	public void imageUpdated(ImagePlus imp) {
+		ImageListener[] ls;
+		synchronized (CSI_EditCounter.class) {
+			Record r = records.get(imp.getID());
+			if (r == null || !check(imp, r))
+				return;
+			ls = listeners.toArray(new ImageListener[listeners.size()]);
+		}
+		for (ImageListener l : ls)
+			l.imageUpdated(imp);
+	}
+}
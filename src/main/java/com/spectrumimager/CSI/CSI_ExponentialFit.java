@@ -3,11 +3,45 @@ package com.spectrumimager.CSI;
 /*
  * Fit class for a exponential function.
  */
-class CSI_ExponentialFit extends CSI_Fit {
+public class CSI_ExponentialFit extends CSI_Fit {
+	public String getName() {
+		return "Exponential";
+	}
+
 	protected double getFitAtX(double c0, double c1, double xi) {
 		if (c0 == 0 && c1 == 0)
 			return 0;
-		return Math.exp(c0 + c1 * xi) + ymin - 1;
+		return Math.exp(c0 + c1 * xi);
+	}
+
+	protected double getFitAtFx(double c0, double c1, double fxi) {
+		if (c0 == 0 && c1 == 0)
+			return 0;
+		return Math.exp(c0 + c1 * fxi);
+	}
+
+	/*
+	 * On evenly spaced channels the sum is a geometric series.
+	 */
+	FitSum getFitSum(double[] x, int from, int to) {
+		final int n = to - from;
+		if (n < 1)
+			return null;
+		final double x0 = x[from];
+		final double dx = n > 1 ? x[from + 1] - x[from] : 0;
+		for (int k = from + 1; k < to; k++) {
+			if (Math.abs(x[k] - x[k - 1] - dx) > 1E-6 * Math.abs(dx))
+				return null;
+		}
+		return new FitSum() {
+			double sum(double c0, double c1) {
+				if (c0 == 0 && c1 == 0)
+					return 0;
+				double t = c1 * dx;
+				double series = Math.abs(t) < 1E-12 ? n : Math.expm1(n * t) / Math.expm1(t);
+				return Math.exp(c0 + c1 * x0) * series;
+			}
+		};
 	}
 
 	protected double fx(double xi) {
@@ -17,4 +51,4 @@ class CSI_ExponentialFit extends CSI_Fit {
 	protected double fy(double yi) {
 		return Math.log(Math.max(1E-3, yi));
 	}
-}
\ No newline at end of file
+}
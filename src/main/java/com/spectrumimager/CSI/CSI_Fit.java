@@ -1,43 +1,175 @@
 package com.spectrumimager.CSI;
 
-import org.ujmp.core.DenseMatrix;
-import org.ujmp.core.Matrix;
-
 /*
  * Generic least squares fit class.
  */
-abstract class CSI_Fit {
-	double ymin = 1;
-	public Matrix Residual;
-
-	Matrix createFit(double[] x, Matrix y, int start, int end) {
-		long s = end - start;
-		long col = y.getColumnCount();
-		Matrix m = DenseMatrix.Factory.zeros(s, 2);
-		Matrix n = DenseMatrix.Factory.zeros(s, col);
-		Matrix coeffs = DenseMatrix.Factory.zeros(2, col);
-
-		// ymin = (new JamaDenseDoubleMatrix2D(y)).getMinValue();
-		// if (ymin>1)
-		// ymin = 1;
-		// y.plusEquals(new Jama.Matrix(y.getRowDimension(), col, -ymin+1));
+abstract class CSI_Fit implements CSI_FitModel {
+	static final int IRLS_PASSES = 4;
+
+	/*
+	 * Every spectrum is fit over the same x-window, so the design matrix
+	 * [1 fx] is shared and the 2x2 normal equations can be solved in closed
+	 * form. Only the per-spectrum sums of fy and fx*fy depend on the data; fx
+	 * is centered on its mean over the window to keep the sums well
+	 * conditioned.
+	 */
+	public double[][] fit(final double[] xWindow, final float[] spectra, int count, final CSI_FitQuality quality) {
+		final int s = xWindow.length;
+		final double[] fxc = new double[s];
+		final double[][] coeffs = new double[2][count];
+		double mean = 0;
+		double ss = 0;
 
 		for (int k = 0; k < s; k++) {
-			m.setAsDouble(1.0, k, 0);
-			m.setAsDouble(fx(x[k + start]), k, 1);
-			for (int i = 0; i < col; i++) {
-				n.setAsDouble(fy(y.getAsDouble(k + start, i)), k, i);
+			fxc[k] = fx(xWindow[k]);
+			mean += fxc[k];
+		}
+		mean /= Math.max(s, 1);
+		for (int k = 0; k < s; k++) {
+			fxc[k] -= mean;
+			ss += fxc[k] * fxc[k];
+		}
+		final double fxMean = mean, sxx = ss;
+
+		// A degenerate window (fewer than two distinct fx values) falls back
+		// to a constant fit
+		CSI_FitExecutor.forEachChunk(count, new CSI_FitExecutor.Chunk() {
+			public void run(int from, int to) {
+				double fyi, a, b, slope;
+				for (int p = from; p < to; p++) {
+					a = 0;
+					b = 0;
+					for (int k = 0, o = p * s; k < s; k++, o++) {
+						fyi = fy(spectra[o]);
+						a += fyi;
+						b += fxc[k] * fyi;
+					}
+					slope = sxx > 0 ? b / sxx : 0;
+					coeffs[0][p] = s > 0 ? a / s - slope * fxMean : 0;
+					coeffs[1][p] = slope;
+					if (quality != null)
+						quality.add(p, 2, xWindow, spectra, p * s, CSI_Fit.this, coeffs);
+				}
 			}
+		});
+
+		return coeffs;
+	}
+
+	/*
+	 * Poisson maximum likelihood version of fit() for models with
+	 * fy = log(y), by iteratively reweighted least squares. Fitting log(y)
+	 * with uniform weights overweights the noisy low-count channels and
+	 * biases the background at low dose. Here each pass solves the weighted
+	 * normal equations with weights mu (the current fitted counts) against
+	 * the working response log(mu) + (y - mu) / mu, which also copes with
+	 * empty channels. The first pass starts from mu = y + 0.1 and a fixed
+	 * number of passes is used, so the cost stays a small multiple of fit().
+	 * A spectrum with no counts in total has no background, as its fit would
+	 * only tend to zero.
+	 */
+	protected double[][] fitWeighted(final double[] xWindow, final float[] spectra, int count,
+			final CSI_FitQuality quality) {
+		final int s = xWindow.length;
+		final double[] fxc = new double[s];
+		final double[][] coeffs = new double[2][count];
+		double mean = 0;
+
+		for (int k = 0; k < s; k++) {
+			fxc[k] = fx(xWindow[k]);
+			mean += fxc[k];
 		}
+		mean /= Math.max(s, 1);
+		for (int k = 0; k < s; k++)
+			fxc[k] -= mean;
+		final double fxMean = mean;
+
+		CSI_FitExecutor.forEachChunk(count, new CSI_FitExecutor.Chunk() {
+			public void run(int from, int to) {
+				double mu, eta, w, z, yi, s0, s1, s2, t0, t1, det, a, b, total;
+				for (int p = from; p < to; p++) {
+					a = 0;
+					b = 0;
+					total = 0;
+					for (int k = 0, o = p * s; k < s; k++, o++)
+						total += spectra[o];
+					for (int pass = 0; pass < IRLS_PASSES && total > 0; pass++) {
+						s0 = 0;
+						s1 = 0;
+						s2 = 0;
+						t0 = 0;
+						t1 = 0;
+						for (int k = 0, o = p * s; k < s; k++, o++) {
+							yi = spectra[o];
+							if (pass == 0) {
+								mu = Math.max(yi, 0) + 0.1;
+								eta = Math.log(mu);
+							} else {
+								eta = a + b * fxc[k];
+								mu = Math.max(Math.exp(eta), 1E-10);
+							}
+							w = mu;
+							z = eta + (yi - mu) / mu;
+							s0 += w;
+							s1 += w * fxc[k];
+							s2 += w * fxc[k] * fxc[k];
+							t0 += w * z;
+							t1 += w * fxc[k] * z;
+						}
+						det = s0 * s2 - s1 * s1;
+						if (!(s0 > 0)) {
+							a = 0;
+							b = 0;
+							break;
+						}
+						if (det > 1E-12 * s0 * s2) {
+							a = (s2 * t0 - s1 * t1) / det;
+							b = (s0 * t1 - s1 * t0) / det;
+						} else {
+							a = t0 / s0;
+							b = 0;
+						}
+					}
+					coeffs[0][p] = a == 0 && b == 0 ? 0 : a - b * fxMean;
+					coeffs[1][p] = b;
+					if (quality != null)
+						quality.add(p, 2, xWindow, spectra, p * s, CSI_Fit.this, coeffs);
+				}
+			}
+		});
 
-		coeffs = m.solve(n);
-		this.Residual = m.mtimes(coeffs).minus(n);
 		return coeffs;
 	}
 
+	public double getFitAtX(double[][] coeffs, int p, double xi) {
+		return getFitAtX(coeffs[0][p], coeffs[1][p], xi);
+	}
+
+	public double getResidual(double[][] coeffs, int p, double xi, double yi) {
+		return coeffs[0][p] + coeffs[1][p] * fx(xi) - fy(yi);
+	}
+
 	protected abstract double getFitAtX(double c0, double c1, double xi);
 
+	/*
+	 * Value of the fit at a channel whose fx() is fxi, for callers that
+	 * evaluate many spectra at the same channels and compute fx() once.
+	 */
+	protected abstract double getFitAtFx(double c0, double c1, double fxi);
+
+	/*
+	 * Sum of the fit over channels [from, to) of x as a function of the
+	 * coefficients, for models where it has a closed form, or null.
+	 */
+	FitSum getFitSum(double[] x, int from, int to) {
+		return null;
+	}
+
+	abstract static class FitSum {
+		abstract double sum(double c0, double c1);
+	}
+
 	protected abstract double fx(double xi);
 
 	protected abstract double fy(double yi);
-}
\ No newline at end of file
+}
@@ -0,0 +1,149 @@
+package com.spectrumimager.CSI;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.IJ;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/*
+ * Keeps the background fit coefficients of recent operations, so that
+ * subtracting, integrating and PCA over an unchanged background window only
+ * fit the data once. Entries are keyed by dataset (its stack and edits, see
+ * CSI_EditCounter), fit type, fit window and oversampling; the least recently used ones are dropped once the cache holds
+ * more than MEMORY_FRACTION of ImageJ's memory.
+ */
+class CSI_FitCache implements ImageListener {
+	static final double MEMORY_FRACTION = 0.1;
+
+	private static final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private static long bytes;
+	private static CSI_FitCache listener;
+
+	/*
+	 * Coefficients of every pixel together with the model that produced them,
+	 * and the fit quality maps if they were asked for.
+	 */
+	static class Entry {
+		final CSI_FitModel fit;
+		final double[][] coeffs;
+		final CSI_FitQuality quality;
+		final long bytes;
+
+		Entry(CSI_FitModel fit, double[][] coeffs, CSI_FitQuality quality) {
+			this.fit = fit;
+			this.coeffs = coeffs;
+			this.quality = quality;
+			long n = 0;
+			for (double[] row : coeffs)
+				n += 8 * row.length;
+			if (quality != null) {
+				for (float[] map : quality.maps)
+					n += 4 * map.length;
+			}
+			this.bytes = n;
+		}
+	}
+
+	private static class Key {
+		final ImageStack stack;
+		final int imageID, edits, start, end;
+		final String fitName;
+		final double xStart, xEnd, sigma;
+
+		Key(ImagePlus img, String fitName, double[] x, int start, int end, double sigma) {
+			this.imageID = img.getID();
+			this.stack = img.getStack();
+			this.edits = CSI_EditCounter.getCount(img);
+			this.fitName = fitName;
+			this.start = start;
+			this.end = end;
+			// The calibration changes the fit even if the channels do not
+			this.xStart = x[start];
+			this.xEnd = x[end];
+			this.sigma = sigma;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return imageID == k.imageID && stack == k.stack && edits == k.edits && fitName.equals(k.fitName) && start == k.start
+					&& end == k.end && xStart == k.xStart && xEnd == k.xEnd && sigma == k.sigma;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = imageID;
+			h = 31 * h + edits;
+			h = 31 * h + fitName.hashCode();
+			h = 31 * h + start;
+			h = 31 * h + end;
+			h = 31 * h + Double.valueOf(sigma).hashCode();
+			return h;
+		}
+	}
+
+	static synchronized Entry get(ImagePlus img, String fitName, double[] x, int start, int end, double sigma) {
+		return entries.get(new Key(img, fitName, x, start, end, sigma));
+	}
+
+	static synchronized void put(ImagePlus img, String fitName, double[] x, int start, int end, double sigma,
+			Entry entry) {
+		if (listener == null) {
+			listener = new CSI_FitCache();
+			CSI_EditCounter.addListener(listener);
+		}
+		Entry old = entries.put(new Key(img, fitName, x, start, end, sigma), entry);
+		if (old != null)
+			bytes -= old.bytes;
+		bytes += entry.bytes;
+		long cap = (long) (IJ.maxMemory() * MEMORY_FRACTION);
+		Iterator<Entry> it = entries.values().iterator();
+		while (bytes > cap && it.hasNext()) {
+			Entry e = it.next();
+			if (e == entry)
+				continue;
+			bytes -= e.bytes;
+			it.remove();
+		}
+	}
+
+	/*
+	 * Drops every entry computed from img.
+	 */
+	static void invalidate(ImagePlus img) {
+		invalidate(img, -1);
+	}
+
+	/*
+	 * As above, keeping those computed after edits edits.
+	 */
+	private static synchronized void invalidate(ImagePlus img, int edits) {
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, Entry> e = it.next();
+			if (e.getKey().imageID == img.getID() && e.getKey().edits != edits) {
+				bytes -= e.getValue().bytes;
+				it.remove();
+			}
+		}
+	}
+
+	public void imageOpened(ImagePlus imp) {
+	}
+
+	public void imageClosed(ImagePlus imp) {
+		invalidate(imp);
+	}
+
+	// Called by CSI_EditCounter once an update is counted as an edit, so
+	// scrolling through the stack keeps the fits.
+	public void imageUpdated(ImagePlus imp) {
+		invalidate(imp, CSI_EditCounter.getCount(imp));
+	}
+}
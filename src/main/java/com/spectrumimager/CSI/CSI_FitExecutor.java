@@ -0,0 +1,81 @@
+package com.spectrumimager.CSI;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ij.Prefs;
+
+/*
+ * Runs per-pixel work in parallel by splitting the pixel index space into
+ * chunks on a shared ForkJoinPool. The number of threads follows ImageJ's
+ * Edit>Options>Memory & Threads setting.
+ */
+class CSI_FitExecutor {
+	static final int MIN_CHUNK = 256; // Smallest number of pixels worth a task
+
+	private static ForkJoinPool pool;
+
+	/*
+	 * Work on the pixels from (inclusive) to to (exclusive).
+	 */
+	interface Chunk {
+		void run(int from, int to);
+	}
+
+	/*
+	 * The pool for the current number of threads. A pool replaced after the
+	 * setting changed is not shut down, as jobs may still be running on it;
+	 * its threads end once they have been idle for a while.
+	 */
+	static synchronized ForkJoinPool getPool() {
+		int threads = Math.max(1, Prefs.getThreads());
+		if (pool == null || pool.getParallelism() != threads)
+			pool = new ForkJoinPool(threads);
+		return pool;
+	}
+
+	/*
+	 * Calls chunk.run over disjoint ranges covering [0, count) and returns
+	 * once all of them are done. Chunks must only write to their own pixels.
+	 */
+	static void forEachChunk(int count, Chunk chunk) {
+		forEachChunk(count, MIN_CHUNK, chunk);
+	}
+
+	/*
+	 * As above for work items that are each worth a task of their own in
+	 * groups of at least minChunk, such as whole slices.
+	 */
+	static void forEachChunk(int count, int minChunk, Chunk chunk) {
+		ForkJoinPool p = getPool();
+		int grain = Math.max(minChunk, count / (4 * p.getParallelism()) + 1);
+		if (p.getParallelism() == 1 || count <= grain) {
+			chunk.run(0, count);
+			return;
+		}
+		p.invoke(new ChunkAction(chunk, 0, count, grain));
+	}
+
+	private static class ChunkAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Chunk chunk;
+		private final int from, to, grain;
+
+		ChunkAction(Chunk chunk, int from, int to, int grain) {
+			this.chunk = chunk;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				chunk.run(from, to);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ChunkAction(chunk, from, mid, grain), new ChunkAction(chunk, mid, to, grain));
+			}
+		}
+	}
+}
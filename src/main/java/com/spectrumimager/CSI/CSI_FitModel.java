@@ -0,0 +1,45 @@
+package com.spectrumimager.CSI;
+
+/*
+ * Background model used by the fit selector. Models are discovered with
+ * ServiceLoader from META-INF/services/com.spectrumimager.CSI.CSI_FitModel,
+ * so a plugin jar can add its own. Implementations need a public no-argument
+ * constructor and must not keep mutable state: one instance is shared by the
+ * live plot and any number of concurrent fits.
+ */
+public interface CSI_FitModel {
+
+	/*
+	 * Name shown in the fit selector.
+	 */
+	String getName();
+
+	/*
+	 * Fits count spectra at once. spectra holds the spectra one after the
+	 * other, each restricted to the fit window (xWindow.length channels).
+	 * Rows 0 and 1 of the result are per-spectrum coefficients (count long);
+	 * a model may append further rows with parameters shared by the block.
+	 * If quality is not null, each spectrum is scored into it as soon as its
+	 * coefficients are known.
+	 */
+	double[][] fit(double[] xWindow, float[] spectra, int count, CSI_FitQuality quality);
+
+	/*
+	 * Whether fit() returns parameters shared by the block, which then
+	 * depend on every spectrum in it: such a model is fit on the whole
+	 * dataset at once rather than a tile at a time.
+	 */
+	default boolean sharesParameters() {
+		return false;
+	}
+
+	/*
+	 * Value of the fitted background of spectrum p at xi.
+	 */
+	double getFitAtX(double[][] coeffs, int p, double xi);
+
+	/*
+	 * Residual of spectrum p at (xi, yi), in the space the fit was done in.
+	 */
+	double getResidual(double[][] coeffs, int p, double xi, double yi);
+}
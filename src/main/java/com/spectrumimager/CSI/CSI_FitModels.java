@@ -0,0 +1,47 @@
+package com.spectrumimager.CSI;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/*
+ * Registry of the available background models, in the order they are listed
+ * in the service files (built-in models first).
+ */
+class CSI_FitModels {
+	static final String NO_FIT = "No Fit";
+
+	private static List<CSI_FitModel> models;
+
+	static synchronized List<CSI_FitModel> getModels() {
+		if (models == null) {
+			List<CSI_FitModel> found = new ArrayList<CSI_FitModel>();
+			// ImageJ loads plugins with its own class loader, not the context one
+			for (CSI_FitModel model : ServiceLoader.load(CSI_FitModel.class, CSI_FitModel.class.getClassLoader())) {
+				if (get(found, model.getName()) == null)
+					found.add(model);
+			}
+			if (get(found, NO_FIT) == null)
+				found.add(0, new CSI_NoFit());
+			models = Collections.unmodifiableList(found);
+		}
+		return models;
+	}
+
+	/*
+	 * Returns the model called name, or No Fit if there is none.
+	 */
+	static CSI_FitModel get(String name) {
+		CSI_FitModel model = get(getModels(), name);
+		return model == null ? get(getModels(), NO_FIT) : model;
+	}
+
+	private static CSI_FitModel get(List<CSI_FitModel> list, String name) {
+		for (CSI_FitModel model : list) {
+			if (model.getName().equals(name))
+				return model;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,65 @@
+package com.spectrumimager.CSI;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+/*
+ * Per-pixel measures of how well the background fit matches the data over
+ * the fit window, filled in by the models as each pixel is fit. All
+ * measures are taken in counts, whatever space the model fits in. It is
+ * public because CSI_FitModel.fit() takes one, so models in other packages
+ * can score their fits; add() is all they need of it.
+ */
+public final class CSI_FitQuality {
+	static final int R2 = 0, CHI2 = 1, RMS = 2;
+	static final String[] LABELS = { "R^2", "Reduced chi^2", "RMS residual", "Negative channels" };
+
+	final float[][] maps;
+
+	CSI_FitQuality(int count) {
+		maps = new float[3][count];
+	}
+
+	/*
+	 * Scores pixel p, whose spectrum starts at spectra[o], against its fit.
+	 * params is the number of per-pixel parameters of the model, for the
+	 * degrees of freedom of the reduced chi^2, whose variance is taken to be
+	 * the fitted counts (Poisson noise).
+	 */
+	public void add(int p, int params, double[] xWindow, float[] spectra, int o, CSI_FitModel fit, double[][] coeffs) {
+		int s = xWindow.length;
+		double yi, r, sy = 0, syy = 0, srr = 0, chi = 0;
+		for (int k = 0; k < s; k++, o++) {
+			yi = spectra[o];
+			r = yi - fit.getFitAtX(coeffs, p, xWindow[k]);
+			sy += yi;
+			syy += yi * yi;
+			srr += r * r;
+			chi += r * r / Math.max(yi - r, 1);
+		}
+		double sst = syy - sy * sy / Math.max(s, 1);
+		maps[R2][p] = (float) (sst > 0 ? 1 - srr / sst : 0);
+		maps[CHI2][p] = (float) (chi / Math.max(s - params, 1));
+		maps[RMS][p] = (float) Math.sqrt(srr / Math.max(s, 1));
+	}
+
+	/*
+	 * Copies the maps of tile, which starts at pixel first, into these.
+	 */
+	void put(CSI_FitQuality tile, int first) {
+		for (int i = 0; i < maps.length; i++)
+			System.arraycopy(tile.maps[i], 0, maps[i], first, tile.maps[i].length);
+	}
+
+	/*
+	 * The maps as a stack, with negative (the number of channels per pixel
+	 * that went negative after subtraction) as the last slice.
+	 */
+	ImageStack getStack(int width, int height, float[] negative) {
+		ImageStack stack = new ImageStack(width, height);
+		for (int i = 0; i < maps.length; i++)
+			stack.addSlice(LABELS[i], new FloatProcessor(width, height, maps[i]));
+		stack.addSlice(LABELS[LABELS.length - 1], new FloatProcessor(width, height, negative));
+		return stack;
+	}
+}
@@ -0,0 +1,45 @@
+package com.spectrumimager.CSI;
+
+/*
+ * The analyzer's background fit settings for one operation: the model, its
+ * name as shown in the fit selector (for titles), the oversampling FWHM in
+ * pixels and the mode and output options. They are taken on the event
+ * dispatch thread when the operation is asked for, so a queued job runs with
+ * the settings it was asked with and never reads the interface itself.
+ */
+class CSI_FitSettings {
+	final CSI_FitModel fit;
+	final String fitName;
+	final double oversampling;
+	final boolean smoothCoefficients, medianSmoothing, fitQuality, fitResidual, meanCentering;
+
+	CSI_FitSettings(CSI_Spectrum_Analyzer analyzer, CSI_FitModel fit) {
+		this.fit = fit;
+		Object item = analyzer.comFit.getSelectedItem();
+		fitName = item != null ? item.toString() : fit.getName();
+		double fwhm = 0;
+		try {
+			fwhm = Double.parseDouble(analyzer.txtOversampling.getText());
+		} catch (NumberFormatException nfe) {
+			analyzer.txtOversampling.setText("0.0");
+		}
+		oversampling = fwhm;
+		smoothCoefficients = analyzer.smoothCoefficients;
+		medianSmoothing = analyzer.medianSmoothing;
+		fitQuality = analyzer.fitQuality;
+		fitResidual = analyzer.fitResidual;
+		meanCentering = analyzer.meanCentering;
+	}
+
+	boolean isNoFit() {
+		return fitName.equals("No Fit");
+	}
+
+	/*
+	 * Blur applied to the data before fitting, which is none unless the
+	 * mode is Oversampled.
+	 */
+	double getSigma() {
+		return smoothCoefficients ? 0 : oversampling * CSI_GaussianFilter.FWHM_TO_SIGMA;
+	}
+}
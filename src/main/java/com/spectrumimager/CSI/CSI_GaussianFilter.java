@@ -0,0 +1,125 @@
+package com.spectrumimager.CSI;
+
+import ij.ImageStack;
+
+/*
+ * Separable Gaussian blur of the slices of a spectrum image, computed for a
+ * band of pixel rows at a time and written straight into a tile with one
+ * spectrum after the other. Only the rows of the band plus a margin of the
+ * kernel radius are read from each slice, so no blurred copy of the stack
+ * is ever made. Pixels beyond the edges take the value of the nearest edge
+ * pixel. Channels are shared between threads.
+ */
+class CSI_GaussianFilter {
+	// The oversampling is given as a probe FWHM in pixels
+	static final double FWHM_TO_SIGMA = 0.42466;
+	// Kernel values below this fraction of the center are left out
+	static final double ACCURACY = 2E-4;
+
+	private final float[] kernel;
+	private final int radius;
+
+	CSI_GaussianFilter(double sigma) {
+		radius = (int) Math.ceil(sigma * Math.sqrt(-2 * Math.log(ACCURACY)));
+		kernel = new float[radius + 1];
+		double sum = 0;
+		for (int t = 0; t <= radius; t++) {
+			kernel[t] = (float) Math.exp(-0.5 * t * t / (sigma * sigma));
+			sum += t == 0 ? kernel[t] : 2 * kernel[t];
+		}
+		for (int t = 0; t <= radius; t++)
+			kernel[t] /= sum;
+	}
+
+	/*
+	 * Blurs channels [start, end) of pixel rows [j0, j1) of stack into dest,
+	 * which holds s channels per pixel from pixel width * j0 on, starting at
+	 * channel offset of each pixel.
+	 */
+	void filter(final ImageStack stack, final int j0, final int j1, final int start, int end, final float[] dest,
+			final int s, final int offset) {
+		if (stack.isVirtual()) {
+			// Slices of a virtual stack are loaded on every getPixels(), so
+			// they are read one at a time and their rows split between threads
+			for (int k = start; k < end; k++)
+				filter(stack, k, stack.getPixels(k + 1), j0, j1, dest, s, offset + k - start, true);
+			return;
+		}
+		CSI_FitExecutor.forEachChunk(end - start, 1, new CSI_FitExecutor.Chunk() {
+			public void run(int from, int to) {
+				for (int k = start + from; k < start + to; k++)
+					filter(stack, k, stack.getPixels(k + 1), j0, j1, dest, s, offset + k - start, false);
+			}
+		});
+	}
+
+	/*
+	 * Blurs slice k, whose pixels are given, into channel c of the tile.
+	 */
+	private void filter(ImageStack stack, int k, Object pixels, final int j0, int j1, final float[] dest,
+			final int s, final int c, boolean parallel) {
+		final int width = stack.getWidth();
+		int height = stack.getHeight();
+		// Rows needed for the vertical pass over [j0, j1)
+		final int h0 = Math.max(0, j0 - radius);
+		final int h1 = Math.min(height, j1 + radius);
+		final float[] rows = new float[(h1 - h0) * width];
+		final float[] values = pixels instanceof float[] ? (float[]) pixels
+				: pixels instanceof short[] || pixels instanceof byte[] ? null
+						: (float[]) stack.getProcessor(k + 1).convertToFloat().getPixels();
+		final Object raw = pixels;
+
+		CSI_FitExecutor.Chunk horizontal = new CSI_FitExecutor.Chunk() {
+			public void run(int from, int to) {
+				float[] line = new float[width];
+				for (int j = h0 + from; j < h0 + to; j++) {
+					read(raw, values, width * j, line);
+					for (int i = 0, o = (j - h0) * width; i < width; i++, o++) {
+						double sum = kernel[0] * line[i];
+						for (int t = 1; t <= radius; t++)
+							sum += kernel[t] * (line[Math.max(i - t, 0)] + line[Math.min(i + t, width - 1)]);
+						rows[o] = (float) sum;
+					}
+				}
+			}
+		};
+		CSI_FitExecutor.Chunk vertical = new CSI_FitExecutor.Chunk() {
+			public void run(int from, int to) {
+				int last = h0 + rows.length / width - 1;
+				for (int j = j0 + from; j < j0 + to; j++) {
+					for (int i = 0, o = (j - j0) * width * s + c; i < width; i++, o += s) {
+						double sum = kernel[0] * rows[(j - h0) * width + i];
+						for (int t = 1; t <= radius; t++)
+							sum += kernel[t] * (rows[(Math.max(j - t, h0) - h0) * width + i]
+									+ rows[(Math.min(j + t, last) - h0) * width + i]);
+						dest[o] = (float) sum;
+					}
+				}
+			}
+		};
+		if (parallel) {
+			CSI_FitExecutor.forEachChunk(h1 - h0, 1, horizontal);
+			CSI_FitExecutor.forEachChunk(j1 - j0, 1, vertical);
+		} else {
+			horizontal.run(0, h1 - h0);
+			vertical.run(0, j1 - j0);
+		}
+	}
+
+	/*
+	 * Copies width pixels from index p of a slice into line.
+	 */
+	private static void read(Object pixels, float[] values, int p, float[] line) {
+		if (values != null) {
+			System.arraycopy(values, p, line, 0, line.length);
+		} else if (pixels instanceof short[]) {
+			short[] h = (short[]) pixels;
+			for (int i = 0; i < line.length; i++)
+				line[i] = h[p + i] & 0xffff;
+		} else {
+			byte[] b = (byte[]) pixels;
+			for (int i = 0; i < line.length; i++)
+				line[i] = b[p + i] & 0xff;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.spectrumimager.CSI;
+
+import ij.ImageStack;
+
+/*
+ * Sums the background subtracted signal of every pixel of a spectrum image
+ * over a window of channels. The stack is walked one slice at a time, so
+ * each pass reads a pixel array from start to end instead of hopping
+ * between slices for every pixel, and the background of the least squares
+ * models is evaluated from fx() values computed once per channel.
+ */
+class CSI_Integrator {
+	private final ImageStack stack;
+	private final double[] x, weights, basis;
+	private final int start;
+	private final CSI_FitModel fit;
+	private final CSI_Fit lsq;
+	private final double[][] coeffs;
+	private final float[] negative;
+
+	/*
+	 * Channel start + k is summed with weight weights[k]; channels of weight
+	 * 0 are skipped. If negative is not null it receives, per pixel, the
+	 * weight of the channels that went negative after subtraction.
+	 */
+	CSI_Integrator(ImageStack stack, double[] x, double[] weights, int start, CSI_FitModel fit, double[][] coeffs,
+			float[] negative) {
+		this.stack = stack;
+		this.x = x;
+		this.weights = weights;
+		this.start = start;
+		this.fit = fit;
+		this.lsq = fit instanceof CSI_Fit ? (CSI_Fit) fit : null;
+		this.coeffs = coeffs;
+		this.negative = negative;
+		basis = new double[weights.length];
+		if (lsq != null) {
+			for (int k = 0; k < weights.length; k++)
+				basis[k] = lsq.fx(x[start + k]);
+		}
+	}
+
+	float[] integrate() {
+		final int n = stack.getWidth() * stack.getHeight();
+		final float[] sums = new float[n];
+
+		if (stack.isVirtual()) {
+			// Slices of a virtual stack are loaded on every getPixels(), so
+			// each is read once and its pixels are split between threads
+			final double[] acc = new double[n];
+			for (int k = 0; k < weights.length; k++) {
+				if (weights[k] == 0)
+					continue;
+				final int slice = k;
+				final Object pixels = stack.getPixels(start + k + 1);
+				CSI_FitExecutor.forEachChunk(n, new CSI_FitExecutor.Chunk() {
+					public void run(int from, int to) {
+						add(slice, pixels, from, to, acc, 0);
+					}
+				});
+			}
+			for (int p = 0; p < n; p++)
+				sums[p] = (float) acc[p];
+		} else {
+			// Each thread takes a block of pixels through every slice, so its
+			// sums stay in cache while the slices stream past
+			CSI_FitExecutor.forEachChunk(n, new CSI_FitExecutor.Chunk() {
+				public void run(int from, int to) {
+					double[] acc = new double[to - from];
+					for (int k = 0; k < weights.length; k++) {
+						if (weights[k] != 0)
+							add(k, stack.getPixels(start + k + 1), from, to, acc, from);
+					}
+					for (int p = from; p < to; p++)
+						sums[p] = (float) acc[p - from];
+				}
+			});
+		}
+		return sums;
+	}
+
+	/*
+	 * Adds channel start + k of pixels [from, to) into acc, where acc[0]
+	 * holds pixel first.
+	 */
+	private void add(int k, Object pixels, int from, int to, double[] acc, int first) {
+		float[] f = pixels instanceof float[] ? (float[]) pixels : null;
+		short[] h = pixels instanceof short[] ? (short[]) pixels : null;
+		byte[] b = pixels instanceof byte[] ? (byte[]) pixels : null;
+		float[] other = f == null && h == null && b == null
+				? (float[]) stack.getProcessor(start + k + 1).convertToFloat().getPixels() : null;
+		double w = weights[k], fxk = basis[k], xk = x[start + k], v, sub;
+		double[] c0 = coeffs[0], c1 = coeffs[1];
+
+		for (int p = from; p < to; p++) {
+			if (f != null)
+				v = f[p];
+			else if (h != null)
+				v = h[p] & 0xffff;
+			else if (b != null)
+				v = b[p] & 0xff;
+			else
+				v = other[p];
+			sub = v - (lsq != null ? lsq.getFitAtFx(c0[p], c1[p], fxk) : fit.getFitAtX(coeffs, p, xk));
+			if (negative != null && sub < 0)
+				negative[p] += w;
+			acc[p - first] += w * sub;
+		}
+	}
+}
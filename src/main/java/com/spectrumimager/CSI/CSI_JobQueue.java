@@ -0,0 +1,134 @@
+package com.spectrumimager.CSI;
+
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import ij.IJ;
+
+/*
+ * Runs the analyzer's operations (integrate, subtract, PCA, ...) off the
+ * event dispatch thread, one after the other in the order they were asked
+ * for, so the interface stays responsive and further operations can be
+ * queued while one runs. Each operation is parallel inside, so running them
+ * one at a time keeps their memory from adding up. Jobs are cancelled
+ * cooperatively: the running job stops at its next progress update, queued
+ * ones are skipped. Pressing Esc in an ImageJ window cancels the running job.
+ */
+class CSI_JobQueue {
+	static final long PROGRESS_INTERVAL = 200; // Shortest time between progress updates (ms)
+
+	private static final LinkedList<Job> queued = new LinkedList<Job>();
+	private static volatile Job current;
+	private static volatile Thread worker;
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "CSI jobs");
+			t.setDaemon(true);
+			worker = t;
+			return t;
+		}
+	});
+
+	/*
+	 * Thrown out of a job's progress update once it has been cancelled.
+	 */
+	static class Cancelled extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/*
+	 * An operation on a dataset. run() is called on the worker thread; the
+	 * dataset's progress display is reset when it ends, however it ends.
+	 */
+	abstract static class Job implements Runnable {
+		final String name;
+		final CSI_SpectrumData state;
+		volatile boolean cancelled;
+
+		Job(String name, CSI_SpectrumData state) {
+			this.name = name;
+			this.state = state;
+		}
+
+		abstract void execute();
+
+		/*
+		 * Estimate of what the job will need, taken when it starts, or null
+		 * if it is too small to matter.
+		 */
+		CSI_Preflight preflight() {
+			return null;
+		}
+
+		public void run() {
+			synchronized (CSI_JobQueue.class) {
+				queued.remove(this);
+			}
+			if (cancelled)
+				return;
+			current = this;
+			IJ.resetEscape();
+			CSI_Preflight estimate = null;
+			try {
+				estimate = preflight();
+				if (estimate != null) {
+					IJ.showStatus(estimate.toString());
+					if (estimate.getPlan() == CSI_Preflight.REFUSE) {
+						IJ.error(name, estimate.getRefusal());
+						return;
+					}
+					estimate.reserve();
+				}
+				execute();
+			} catch (Cancelled e) {
+				IJ.showStatus(name + " cancelled");
+			} catch (OutOfMemoryError e) {
+				IJ.outOfMemory(name);
+			} catch (Throwable t) {
+				IJ.handleException(t);
+			} finally {
+				if (estimate != null)
+					estimate.release();
+				current = null;
+				state.showProgress(1);
+			}
+		}
+	}
+
+	static synchronized void submit(Job job) {
+		queued.add(job);
+		executor.execute(job);
+		job.state.showProgress(1);
+	}
+
+	/*
+	 * Cancels the running job and every queued one.
+	 */
+	static synchronized void cancelAll() {
+		for (Job job : queued)
+			job.cancelled = true;
+		Job job = current;
+		if (job != null)
+			job.cancelled = true;
+	}
+
+	static synchronized int getQueued() {
+		return queued.size();
+	}
+
+	/*
+	 * Throws Cancelled if called from a job that has been cancelled; does
+	 * nothing outside of jobs.
+	 */
+	static void checkCancelled() {
+		Job job = current;
+		if (job == null || Thread.currentThread() != worker)
+			return;
+		if (IJ.escapePressed())
+			job.cancelled = true;
+		if (job.cancelled)
+			throw new Cancelled();
+	}
+}
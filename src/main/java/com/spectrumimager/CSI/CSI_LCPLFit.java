@@ -1,56 +1,152 @@
 package com.spectrumimager.CSI;
 
-import java.util.Arrays;
-
-import org.ujmp.core.DenseMatrix;
-import org.ujmp.core.Matrix;
-
 /*
  * Fit class for a linear combination of power laws (LCPL)
  */
-class CSI_LCPLFit extends CSI_Fit {
-	double R1 = 0, R2 = 0;
-	double min = .2, max = .8;
-
-	@Override
-	Matrix createFit(double[] x, Matrix y, int start, int end) {
-		double[] powerLawCoeffs = (new CSI_PowerFit()).createFit(x, y, start, end).toDoubleArray()[1];
-		Arrays.sort(powerLawCoeffs);
-		R1 = powerLawCoeffs[(int) (powerLawCoeffs.length * min)];
-		R2 = Math.min(powerLawCoeffs[(int) (powerLawCoeffs.length * max)], 0);
-
-		int s = end - start;
-		long col = y.getColumnCount();
-		Matrix m = DenseMatrix.Factory.zeros(s, 2);
-		Matrix n = DenseMatrix.Factory.zeros(s, col);
-		Matrix coeffs = DenseMatrix.Factory.zeros(2, col);
+public class CSI_LCPLFit implements CSI_FitModel {
+	static final double MIN = .2, MAX = .8;
+
+	public String getName() {
+		return "LCPL";
+	}
+
+	/*
+	 * The two exponents are picked from the spread of single power law fits
+	 * over the whole block and returned as row 2 of the coefficients.
+	 */
+	public double[][] fit(double[] xWindow, float[] spectra, int count, CSI_FitQuality quality) {
+		double[] slopes = (new CSI_PowerFit()).fit(xWindow, spectra, count, null)[1];
+		return fit(xWindow, spectra, count, quality, exponents(slopes));
+	}
+
+	public boolean sharesParameters() {
+		return true;
+	}
+
+	/*
+	 * The exponents {R1, R2} of a block whose single power law exponents
+	 * (row 1 of CSI_PowerFit's coefficients) are slopes, which is reordered.
+	 * A block too large to fit at once is fit a tile at a time with the
+	 * exponents of the slopes of every tile.
+	 */
+	static double[] exponents(double[] slopes) {
+		// Only two percentiles are needed, so select them rather than sort
+		int n = slopes.length;
+		double R1 = 0, R2 = 0;
+		if (n > 0) {
+			int kMin = (int) (n * MIN), kMax = (int) (n * MAX);
+			R1 = select(slopes, 0, n - 1, kMin);
+			R2 = Math.min(select(slopes, kMin, n - 1, kMax), 0);
+		}
+		return new double[] { R1, R2 };
+	}
+
+	/*
+	 * Fits the block with the exponents R = {R1, R2}.
+	 */
+	double[][] fit(final double[] xWindow, final float[] spectra, int count, final CSI_FitQuality quality,
+			double[] R) {
+		double R1 = R[0], R2 = R[1];
 
+		/*
+		 * The columns x^R1 and x^R2 are the same for every pixel, so their QR
+		 * factorization is done once here. Each pixel then only needs the two
+		 * projections of its spectrum onto q1 and q2 and a back substitution.
+		 */
+		final int s = xWindow.length;
+		final double[] q1 = new double[s];
+		final double[] q2 = new double[s];
+		double r11 = 0, r12 = 0, r22 = 0, vv = 0;
 		for (int k = 0; k < s; k++) {
-			m.setAsDouble(Math.pow(x[k + start], R1), k, 0);
-			m.setAsDouble(Math.pow(x[k + start], R2), k, 1);
-			for (int i = 0; i < col; i++) {
-				n.setAsDouble(fy(y.getAsDouble(k + start, i)), k, i);
-			}
+			q1[k] = Math.pow(xWindow[k], R1);
+			q2[k] = Math.pow(xWindow[k], R2);
+			r11 += q1[k] * q1[k];
+			vv += q2[k] * q2[k];
+		}
+		r11 = Math.sqrt(r11);
+		for (int k = 0; k < s; k++) {
+			q1[k] = r11 > 0 ? q1[k] / r11 : 0;
+			r12 += q1[k] * q2[k];
 		}
+		for (int k = 0; k < s; k++) {
+			q2[k] -= r12 * q1[k];
+			r22 += q2[k] * q2[k];
+		}
+		r22 = Math.sqrt(r22);
+		// Equal exponents leave a single power law
+		final boolean single = !(r22 > 1E-12 * Math.sqrt(vv));
+		for (int k = 0; k < s; k++)
+			q2[k] = single ? 0 : q2[k] / r22;
 
-		coeffs = m.solve(n);
-		this.Residual = m.mtimes(coeffs).minus(n);
+		final double[][] coeffs = new double[][] { new double[count], new double[count], { R1, R2 } };
+		final double fr11 = r11, fr12 = r12, fr22 = r22;
+		CSI_FitExecutor.forEachChunk(count, new CSI_FitExecutor.Chunk() {
+			public void run(int from, int to) {
+				double a, b, c1, yi;
+				for (int p = from; p < to; p++) {
+					a = 0;
+					b = 0;
+					for (int k = 0, o = p * s; k < s; k++, o++) {
+						yi = spectra[o];
+						a += q1[k] * yi;
+						b += q2[k] * yi;
+					}
+					c1 = single ? 0 : b / fr22;
+					coeffs[0][p] = fr11 > 0 ? (a - fr12 * c1) / fr11 : 0;
+					coeffs[1][p] = c1;
+					if (quality != null)
+						quality.add(p, 2, xWindow, spectra, p * s, CSI_LCPLFit.this, coeffs);
+				}
+			}
+		});
 
 		return coeffs;
 	}
 
-	protected double getFitAtX(double c0, double c1, double xi) {
+	/*
+	 * Returns the value that would be at index k of a[lo..hi] once sorted,
+	 * partially reordering a[lo..hi] in the process (quickselect). Values
+	 * compare as in Arrays.sort, so NaNs count as the largest.
+	 */
+	static double select(double[] a, int lo, int hi, int k) {
+		double pivot, t;
+		int i, j;
+		while (lo < hi) {
+			pivot = a[(lo + hi) >>> 1];
+			i = lo;
+			j = hi;
+			while (i <= j) {
+				while (Double.compare(a[i], pivot) < 0)
+					i++;
+				while (Double.compare(a[j], pivot) > 0)
+					j--;
+				if (i <= j) {
+					t = a[i];
+					a[i] = a[j];
+					a[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				break;
+		}
+		return a[k];
+	}
+
+	public double getFitAtX(double[][] coeffs, int p, double xi) {
+		double c0 = coeffs[0][p], c1 = coeffs[1][p];
 		if (c0 == 0 && c1 == 0)
 			// if (c0==0)
 			return 0;
-		return c0 * Math.pow(xi, R1) + c1 * Math.pow(xi, R2);
-	}
-
-	protected double fx(double xi) {
-		return 0;
+		return c0 * Math.pow(xi, coeffs[2][0]) + c1 * Math.pow(xi, coeffs[2][1]);
 	}
 
-	protected double fy(double yi) {
-		return yi;
+	public double getResidual(double[][] coeffs, int p, double xi, double yi) {
+		return coeffs[0][p] * Math.pow(xi, coeffs[2][0]) + coeffs[1][p] * Math.pow(xi, coeffs[2][1]) - yi;
 	}
-}
\ No newline at end of file
+}
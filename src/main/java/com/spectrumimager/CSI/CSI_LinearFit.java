@@ -3,9 +3,30 @@ package com.spectrumimager.CSI;
 /*
  * Fit class for a linear function.
  */
-class CSI_LinearFit extends CSI_Fit {
+public class CSI_LinearFit extends CSI_Fit {
+	public String getName() {
+		return "Linear";
+	}
+
 	protected double getFitAtX(double c0, double c1, double xi) {
-		return c0 + c1 * xi + ymin - 1;
+		return c0 + c1 * xi;
+	}
+
+	protected double getFitAtFx(double c0, double c1, double fxi) {
+		return c0 + c1 * fxi;
+	}
+
+	FitSum getFitSum(double[] x, int from, int to) {
+		final int n = to - from;
+		double s = 0;
+		for (int k = from; k < to; k++)
+			s += x[k];
+		final double sx = s;
+		return new FitSum() {
+			double sum(double c0, double c1) {
+				return c0 * n + c1 * sx;
+			}
+		};
 	}
 
 	protected double fx(double xi) {
@@ -15,4 +36,4 @@ class CSI_LinearFit extends CSI_Fit {
 	protected double fy(double yi) {
 		return yi;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,318 @@
+package com.spectrumimager.CSI;
+
+import java.awt.EventQueue;
+import java.util.Arrays;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+
+/*
+ * Low resolution preview of the background subtracted map of the current
+ * windows, kept up to date while they are dragged. It is made from a binned
+ * level of the dataset's pyramid (the finest built one of at most MAX_BINS
+ * bins), of which the cumulative sums along energy are kept, together with
+ * those of the fitted background. A new integration window then costs two
+ * differences per bin; only a new background window or model refits the
+ * bins. The work is done on a background thread that, like
+ * CSI_LiveProfile, takes the latest windows and drops older requests, and
+ * the map is shown from the event dispatch thread. The values are per
+ * pixel, as the bins hold mean spectra. The sums are held against
+ * CSI_Preflight's budget until the thread exits.
+ */
+class CSI_LiveMap implements Runnable {
+	static final int MAX_BINS = 256 * 256;
+	// The cumulative sums may take this much of ImageJ's memory
+	static final double MEMORY_FRACTION = 0.05;
+	// Time between looks at a pyramid that is still being built
+	static final long RETRY = 250; // ms
+
+	private final CSI_SpectrumData2D data;
+	private Thread thread;
+	private boolean requested, publishing, closed;
+	private ImagePlus preview;
+
+	// The level the sums are of, and the fit the background sums are of
+	private float[] level;
+	private double[] sums, background;
+	private int factor, width, height;
+	private int fitX0, fitX1;
+	private CSI_FitModel fitModel;
+	private long held;
+
+	// The latest map waiting to be shown
+	private float[] latest;
+	private int latestWidth, latestHeight, latestFactor;
+
+	CSI_LiveMap(CSI_SpectrumData2D data) {
+		this.data = data;
+	}
+
+	/*
+	 * Asks for the preview of the current windows.
+	 */
+	synchronized void request() {
+		requested = true;
+		if (thread == null) {
+			thread = new Thread(this, "CSI Live Map");
+			thread.setPriority(Math.max(thread.getPriority() - 3, Thread.MIN_PRIORITY));
+			thread.setDaemon(true);
+			thread.start();
+		}
+		notify();
+	}
+
+	synchronized void stop() {
+		if (thread != null)
+			thread.interrupt();
+		thread = null;
+	}
+
+	/*
+	 * Closes the preview window; the next request opens a new one.
+	 */
+	void close() {
+		synchronized (this) {
+			closed = false;
+		}
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				if (preview != null)
+					preview.close();
+				preview = null;
+			}
+		});
+	}
+
+	public void run() {
+		try {
+			loop();
+		} finally {
+			drop();
+		}
+	}
+
+	private void loop() {
+		while (true) {
+			int X0, X1, iX0, iX1;
+			CSI_FitModel fit;
+			synchronized (this) {
+				while (!requested) {
+					try {
+						wait();
+					} catch (InterruptedException e) { // interrupted tells the thread to exit
+						return;
+					}
+				}
+				requested = false;
+				// A preview closed by the user stays closed
+				if (closed)
+					continue;
+			}
+			if (data.listenersRemoved)
+				return;
+			X0 = data.X0;
+			X1 = data.X1;
+			iX0 = data.iX0;
+			iX1 = data.iX1;
+			fit = data.fit;
+			CSI_Pyramid pyramid = data.getPyramid();
+			try {
+				if (!update(pyramid, X0, X1, fit)) {
+					synchronized (this) {
+						if (pyramid.isBuilding() && !requested) {
+							wait(RETRY);
+							requested = true;
+						}
+					}
+					continue;
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (OutOfMemoryError e) {
+				drop();
+				continue;
+			}
+			publish(map(iX0, iX1), width, height, factor);
+		}
+	}
+
+	/*
+	 * Brings the sums up to date with the pyramid and the background window.
+	 * Returns false if no level is ready.
+	 */
+	private boolean update(CSI_Pyramid pyramid, int X0, int X1, CSI_FitModel fit) {
+		int size = data.size;
+		int chosen = -1;
+		for (int l = 0; l < CSI_Pyramid.FACTORS.length && chosen < 0; l++) {
+			long bins = (long) pyramid.getWidth(l) * pyramid.getHeight(l);
+			if (pyramid.getLevel(l) != null && bins <= MAX_BINS
+					&& bytes(bins, size) <= IJ.maxMemory() * MEMORY_FRACTION)
+				chosen = l;
+		}
+		if (chosen < 0)
+			return false;
+		if (pyramid.getLevel(chosen) != level) {
+			drop();
+			long bins = (long) pyramid.getWidth(chosen) * pyramid.getHeight(chosen);
+			if (!CSI_Preflight.tryReserve(bytes(bins, size)))
+				return false;
+			held = bytes(bins, size);
+			level = pyramid.getLevel(chosen);
+			factor = CSI_Pyramid.FACTORS[chosen];
+			width = pyramid.getWidth(chosen);
+			height = pyramid.getHeight(chosen);
+			sums = cumulate(level, width * height, size);
+		}
+		if (background == null || X0 != fitX0 || X1 != fitX1 || fit != fitModel) {
+			background = fitBackground(X0, X1, fit);
+			fitX0 = X0;
+			fitX1 = X1;
+			fitModel = fit;
+		}
+		return true;
+	}
+
+	/*
+	 * The memory of the sums and the background sums of bins spectra, kept
+	 * in double as the sums of long spectra outgrow the precision of float.
+	 */
+	private static long bytes(long bins, int size) {
+		return 2 * 8 * bins * (size + 1);
+	}
+
+	/*
+	 * Drops the sums and gives back their memory.
+	 */
+	private void drop() {
+		level = null;
+		sums = null;
+		background = null;
+		CSI_Preflight.unreserve(held);
+		held = 0;
+	}
+
+	/*
+	 * Sums over [0, k) of each spectrum of values for k = 0 ... size.
+	 */
+	private static double[] cumulate(final float[] values, int count, final int size) {
+		final double[] cum = new double[count * (size + 1)];
+		CSI_FitExecutor.forEachChunk(count, new CSI_FitExecutor.Chunk() {
+			public void run(int from, int to) {
+				for (int p = from; p < to; p++) {
+					double acc = 0;
+					for (int k = 0, i = p * size, o = p * (size + 1); k < size; k++, i++) {
+						acc += values[i];
+						cum[o + k + 1] = acc;
+					}
+				}
+			}
+		});
+		return cum;
+	}
+
+	/*
+	 * Fits the background of every bin over [X0, X1) and returns the
+	 * cumulative sums of the fit over all channels.
+	 */
+	private double[] fitBackground(int X0, int X1, final CSI_FitModel fit) {
+		final int size = data.size;
+		final int count = width * height;
+		final double[] cum = new double[count * (size + 1)];
+		final int s = X1 - X0;
+		if (s < 2 || fit == null)
+			return cum;
+		final double[] x = data.x;
+		float[] spectra = new float[count * s];
+		for (int p = 0; p < count; p++)
+			System.arraycopy(level, p * size + X0, spectra, p * s, s);
+		final double[][] coeffs = fit.fit(Arrays.copyOfRange(x, X0, X1), spectra, count, null);
+		final CSI_Fit lsq = fit instanceof CSI_Fit ? (CSI_Fit) fit : null;
+		final double[] basis = new double[size];
+		if (lsq != null) {
+			for (int k = 0; k < size; k++)
+				basis[k] = lsq.fx(x[k]);
+		}
+		CSI_FitExecutor.forEachChunk(count, new CSI_FitExecutor.Chunk() {
+			public void run(int from, int to) {
+				for (int p = from; p < to; p++) {
+					double acc = 0;
+					for (int k = 0, o = p * (size + 1); k < size; k++) {
+						acc += lsq != null ? lsq.getFitAtFx(coeffs[0][p], coeffs[1][p], basis[k])
+								: fit.getFitAtX(coeffs, p, x[k]);
+						cum[o + k + 1] = acc;
+					}
+				}
+			}
+		});
+		return cum;
+	}
+
+	/*
+	 * The background subtracted sum over [iX0, iX1) of every bin.
+	 */
+	private float[] map(int iX0, int iX1) {
+		int size = data.size;
+		int count = width * height;
+		int a = Math.max(0, Math.min(iX0, size)), b = Math.max(a, Math.min(iX1, size));
+		float[] map = new float[count];
+		for (int p = 0, o = 0; p < count; p++, o += size + 1)
+			map[p] = (float) ((sums[o + b] - sums[o + a]) - (background[o + b] - background[o + a]));
+		return map;
+	}
+
+	private void publish(float[] map, int w, int h, int f) {
+		synchronized (this) {
+			latest = map;
+			latestWidth = w;
+			latestHeight = h;
+			latestFactor = f;
+			if (publishing)
+				return;
+			publishing = true;
+		}
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				float[] map;
+				int w, h, f;
+				synchronized (CSI_LiveMap.this) {
+					map = latest;
+					w = latestWidth;
+					h = latestHeight;
+					f = latestFactor;
+					publishing = false;
+				}
+				show(map, w, h, f);
+			}
+		});
+	}
+
+	/*
+	 * Shows map in the preview window, on the event dispatch thread.
+	 */
+	private void show(float[] map, int w, int h, int f) {
+		if (preview != null && preview.getWindow() == null) {
+			synchronized (this) {
+				closed = true;
+			}
+			preview = null;
+			return;
+		}
+		FloatProcessor ip = new FloatProcessor(w, h, map);
+		ip.resetMinAndMax();
+		if (preview == null || preview.getWidth() != w || preview.getHeight() != h) {
+			if (preview != null)
+				preview.close();
+			preview = new ImagePlus("Preview of " + data.img.getTitle(), ip);
+			Calibration cal = data.img.getCalibration().copy();
+			cal.pixelWidth *= f;
+			cal.pixelHeight *= f;
+			preview.setCalibration(cal);
+			preview.show();
+		} else {
+			preview.setProcessor(ip);
+			preview.updateAndDraw();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.spectrumimager.CSI;
+
+import java.awt.EventQueue;
+
+/*
+ * Keeps the spectrum plot following the selection without doing the work on
+ * the event dispatch thread. Selection changes only post a request; a
+ * background thread reads the profile of whatever the selection is by then,
+ * so requests that arrive while it is busy collapse into one, and hands the
+ * result to the event dispatch thread to plot. While a plot is waiting there
+ * newer profiles replace it instead of queueing behind it. This is the
+ * wait/notify loop of CSI_Dynamic_Profiler. Where the data has a quick
+ * preview of the profile, that is shown first and the exact profile only
+ * once the selection has stayed put for PAUSE.
+ */
+class CSI_LiveProfile implements Runnable {
+	static final long PAUSE = 150; // ms
+	private final CSI_SpectrumData data;
+	private Thread thread;
+	private boolean requested, publishing;
+	private double[] latest;
+
+	CSI_LiveProfile(CSI_SpectrumData data) {
+		this.data = data;
+	}
+
+	/*
+	 * Asks for the profile of the current selection to be read and plotted.
+	 */
+	synchronized void request() {
+		requested = true;
+		if (thread == null) {
+			thread = new Thread(this, "CSI Live Profile");
+			thread.setPriority(Math.max(thread.getPriority() - 3, Thread.MIN_PRIORITY));
+			thread.setDaemon(true);
+			thread.start();
+		}
+		notify();
+	}
+
+	synchronized void stop() {
+		if (thread != null)
+			thread.interrupt();
+		thread = null;
+	}
+
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				while (!requested) {
+					try {
+						wait();
+					} catch (InterruptedException e) { // interrupted tells the thread to exit
+						return;
+					}
+				}
+				requested = false;
+			}
+			if (data.listenersRemoved)
+				return;
+			double[] preview = data.getPreviewProfile();
+			if (preview != null) {
+				publish(preview);
+				synchronized (this) {
+					try {
+						wait(PAUSE);
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (requested)
+						continue;
+				}
+			}
+			publish(data.getProfile());
+		}
+	}
+
+	private void publish(double[] y) {
+		synchronized (this) {
+			latest = y;
+			if (publishing)
+				return;
+			publishing = true;
+		}
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				double[] y;
+				synchronized (CSI_LiveProfile.this) {
+					y = latest;
+					publishing = false;
+				}
+				data.y = y;
+				data.updateProfile();
+			}
+		});
+	}
+}
@@ -0,0 +1,303 @@
+package com.spectrumimager.CSI;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/*
+ * Stack whose slices are read straight from a memory mapped file, so a
+ * spectrum image larger than the heap can be opened and only the pages
+ * that are touched are loaded. The file holds the slices one after the
+ * other, each one row after the other, as raw DM3 spectrum images do.
+ * Edits to a slice are written back to the mapping: an opened file is
+ * mapped copy-on-write, so they are kept while it is open but never reach
+ * the file, and a file that cannot be written is mapped read only and its
+ * edits are dropped with a warning.
+ */
+class CSI_MappedStack extends VirtualStack {
+	// Datasets larger than this fraction of the free memory are mapped
+	static final double MEMORY_FRACTION = 0.5;
+
+	private final int width, height, depth, type;
+	private final long sliceBytes;
+	private final int slicesPerSegment;
+	private final MappedByteBuffer[] segments;
+	private final ByteOrder order;
+	private final String[] labels;
+	private final String path;
+	private boolean warned;
+
+	/*
+	 * Maps the raw block described by fi. type is one of GRAY8,
+	 * GRAY16_UNSIGNED, GRAY16_SIGNED, GRAY32_INT, GRAY32_UNSIGNED or
+	 * GRAY32_FLOAT.
+	 */
+	private CSI_MappedStack(File file, long offset, int width, int height, int depth, int type, boolean intel,
+			FileChannel.MapMode mode) throws IOException {
+		super(width, height, null, file.getParent());
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.type = type;
+		this.path = file.getPath();
+		this.order = intel ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		this.labels = new String[depth];
+		sliceBytes = (long) width * height * bytesPerPixel(type);
+		// A single mapping is limited to 2GB, so whole slices are grouped
+		slicesPerSegment = (int) Math.max(1, Integer.MAX_VALUE / sliceBytes);
+		segments = new MappedByteBuffer[(depth + slicesPerSegment - 1) / slicesPerSegment];
+		RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			for (int i = 0; i < segments.length; i++) {
+				int slices = Math.min(slicesPerSegment, depth - i * slicesPerSegment);
+				segments[i] = channel.map(mode, offset + i * slicesPerSegment * sliceBytes, slices * sliceBytes);
+			}
+		} finally {
+			// The mappings stay valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/*
+	 * Maps the stack described by fi, or returns null if its pixel type
+	 * cannot be mapped or a slice is too large for one mapping.
+	 */
+	static CSI_MappedStack open(FileInfo fi) throws IOException {
+		if (bytesPerPixel(fi.fileType) == 0 || fi.gapBetweenImages != 0
+				|| (long) fi.width * fi.height * bytesPerPixel(fi.fileType) > Integer.MAX_VALUE)
+			return null;
+		File file = new File(fi.directory, fi.fileName);
+		// Copy-on-write needs a channel open for writing
+		FileChannel.MapMode mode = file.canWrite() ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_ONLY;
+		return new CSI_MappedStack(file, fi.getOffset(), fi.width, fi.height, Math.max(fi.nImages, 1), fi.fileType,
+				fi.intelByteOrder, mode);
+	}
+
+	/*
+	 * Creates a float stack of the given size in a new temporary file, to be
+	 * filled with setSpectra(), or returns null if a slice is too large for
+	 * one mapping.
+	 */
+	static CSI_MappedStack create(int width, int height, int depth) throws IOException {
+		if (4L * width * height > Integer.MAX_VALUE)
+			return null;
+		File file = File.createTempFile("CSI", ".cube");
+		file.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(4L * width * height * depth);
+		} finally {
+			raf.close();
+		}
+		return new CSI_MappedStack(file, 0, width, height, depth, FileInfo.GRAY32_FLOAT, false,
+				FileChannel.MapMode.READ_WRITE);
+	}
+
+	/*
+	 * Whether a dataset of this many bytes is better mapped than loaded.
+	 */
+	static boolean shouldMap(long bytes) {
+		return bytes > (IJ.maxMemory() - IJ.currentMemory()) * MEMORY_FRACTION;
+	}
+
+	/*
+	 * Opens fi as a mapped stack if it is too large to load, else returns
+	 * null so the caller opens it as usual.
+	 */
+	static ImagePlus openIfLarge(FileInfo fi, String title) {
+		if (fi.nImages < 2 || !shouldMap((long) fi.width * fi.height * fi.nImages * Math.max(fi.getBytesPerPixel(), 1)))
+			return null;
+		try {
+			CSI_MappedStack stack = open(fi);
+			return stack == null ? null : new ImagePlus(title, stack);
+		} catch (IOException e) {
+			IJ.log("Could not map " + fi.fileName + ": " + e);
+			return null;
+		}
+	}
+
+	private static int bytesPerPixel(int type) {
+		switch (type) {
+		case FileInfo.GRAY8:
+			return 1;
+		case FileInfo.GRAY16_SIGNED:
+		case FileInfo.GRAY16_UNSIGNED:
+			return 2;
+		case FileInfo.GRAY32_INT:
+		case FileInfo.GRAY32_UNSIGNED:
+		case FileInfo.GRAY32_FLOAT:
+			return 4;
+		default:
+			return 0;
+		}
+	}
+
+	/*
+	 * Independent view of slice n (1-based), positioned at its first byte.
+	 */
+	private ByteBuffer slice(int n) {
+		ByteBuffer b = segments[(n - 1) / slicesPerSegment].duplicate();
+		b.position((int) (((n - 1) % slicesPerSegment) * sliceBytes));
+		// duplicate() does not keep the byte order
+		return b.order(order);
+	}
+
+	/*
+	 * Writes the spectra of count pixels from pixel p on (in row order),
+	 * held in block one spectrum after the other, a slice at a time so
+	 * each slice gets one contiguous run.
+	 */
+	void setSpectra(int p, int count, float[] block) {
+		float[] run = new float[count];
+		for (int k = 0; k < depth; k++) {
+			for (int q = 0, o = k; q < count; q++, o += depth)
+				run[q] = block[o];
+			FloatBuffer b = slice(k + 1).asFloatBuffer();
+			b.position(p);
+			b.put(run);
+		}
+	}
+
+	/*
+	 * Signed 16 bit and 32 bit integer data are returned as floats.
+	 */
+	public Object getPixels(int n) {
+		ByteBuffer b = slice(n);
+		int size = width * height;
+		switch (type) {
+		case FileInfo.GRAY8: {
+			byte[] pixels = new byte[size];
+			b.get(pixels);
+			return pixels;
+		}
+		case FileInfo.GRAY16_UNSIGNED: {
+			short[] pixels = new short[size];
+			b.asShortBuffer().get(pixels);
+			return pixels;
+		}
+		case FileInfo.GRAY16_SIGNED: {
+			float[] pixels = new float[size];
+			for (int p = 0; p < size; p++)
+				pixels[p] = b.getShort();
+			return pixels;
+		}
+		case FileInfo.GRAY32_INT: {
+			float[] pixels = new float[size];
+			for (int p = 0; p < size; p++)
+				pixels[p] = b.getInt();
+			return pixels;
+		}
+		case FileInfo.GRAY32_UNSIGNED: {
+			float[] pixels = new float[size];
+			for (int p = 0; p < size; p++)
+				pixels[p] = b.getInt() & 0xffffffffL;
+			return pixels;
+		}
+		default: {
+			float[] pixels = new float[size];
+			b.asFloatBuffer().get(pixels);
+			return pixels;
+		}
+		}
+	}
+
+	public ImageProcessor getProcessor(int n) {
+		return processor(getPixels(n));
+	}
+
+	private ImageProcessor processor(Object pixels) {
+		if (pixels instanceof byte[])
+			return new ByteProcessor(width, height, (byte[]) pixels, null);
+		if (pixels instanceof short[])
+			return new ShortProcessor(width, height, (short[]) pixels, null);
+		return new FloatProcessor(width, height, (float[]) pixels, null);
+	}
+
+	/*
+	 * Writes slice n back to the mapping, converted to the file's type as
+	 * getPixels() converts from it.
+	 */
+	public void setPixels(Object pixels, int n) {
+		ByteBuffer b = slice(n);
+		if (b.isReadOnly()) {
+			if (!warned)
+				IJ.log("Edits to " + new File(path).getName() + " are not kept, as it cannot be written.");
+			warned = true;
+			return;
+		}
+		int size = width * height;
+		if (type == FileInfo.GRAY8 && pixels instanceof byte[]) {
+			b.put((byte[]) pixels, 0, size);
+		} else if (type == FileInfo.GRAY16_UNSIGNED && pixels instanceof short[]) {
+			b.asShortBuffer().put((short[]) pixels, 0, size);
+		} else if (type == FileInfo.GRAY32_FLOAT && pixels instanceof float[]) {
+			b.asFloatBuffer().put((float[]) pixels, 0, size);
+		} else {
+			ImageProcessor ip = processor(pixels);
+			for (int p = 0; p < size; p++) {
+				float v = ip.getf(p);
+				switch (type) {
+				case FileInfo.GRAY8:
+					b.put((byte) Math.max(0, Math.min(255, Math.round(v))));
+					break;
+				case FileInfo.GRAY16_UNSIGNED:
+					b.putShort((short) Math.max(0, Math.min(65535, Math.round(v))));
+					break;
+				case FileInfo.GRAY16_SIGNED:
+					b.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(v))));
+					break;
+				case FileInfo.GRAY32_INT:
+					b.putInt((int) Math.round((double) v));
+					break;
+				case FileInfo.GRAY32_UNSIGNED:
+					b.putInt((int) Math.max(0, Math.min(0xffffffffL, Math.round((double) v))));
+					break;
+				default:
+					b.putFloat(v);
+				}
+			}
+		}
+	}
+
+	public int getSize() {
+		return depth;
+	}
+
+	public String getSliceLabel(int n) {
+		return labels[n - 1];
+	}
+
+	public void setSliceLabel(String label, int n) {
+		labels[n - 1] = label;
+	}
+
+	public String getFileName(int n) {
+		return new File(path).getName();
+	}
+
+	public int getBitDepth() {
+		switch (type) {
+		case FileInfo.GRAY8:
+			return 8;
+		case FileInfo.GRAY16_UNSIGNED:
+			return 16;
+		default:
+			return 32;
+		}
+	}
+}
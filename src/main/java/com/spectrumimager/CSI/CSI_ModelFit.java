@@ -1,59 +1,67 @@
 package com.spectrumimager.CSI;
 
-import org.ujmp.core.DenseMatrix;
-import org.ujmp.core.Matrix;
-
+/*
+ * Scales each pixel's background fit to its spectrum over the background
+ * window, then integrates the data above the scaled background over the
+ * edge window.
+ */
 class CSI_ModelFit {
-	Matrix[] backgroundsAndEdges = null;
-
-	void createModelNoG(double[] x, Matrix y, int bStart, int bEnd, int eStart, int eEnd, CSI_Fit fit) {
-		Matrix bcoeffs = fit.createFit(x, y, bStart, bEnd);
+	double[] x;
+	double[][] bcoeffs;
+	CSI_FitModel fit;
+	int bStart, bEnd, eStart, eEnd;
 
-		backgroundsAndEdges = new Matrix[(int) y.getColumnCount()];
-		for (int p = 0; p < (int) y.getColumnCount(); p++) {
-			backgroundsAndEdges[p] = DenseMatrix.Factory.zeros(bEnd - bStart + eEnd - eStart, 1);
-			for (int e = 0; e < bEnd - bStart; e++) {
-				backgroundsAndEdges[p].setAsDouble(
-						fit.getFitAtX(bcoeffs.getAsDouble(0, p), bcoeffs.getAsDouble(1, p), x[e + bStart]), e, 0);
-			}
-			for (int e = 0; e < eEnd - eStart; e++) {
-				backgroundsAndEdges[p].setAsDouble(
-						fit.getFitAtX(bcoeffs.getAsDouble(0, p), bcoeffs.getAsDouble(1, p), x[e + eStart]),
-						e + bEnd - bStart, 0);
-			}
-		}
+	/*
+	 * Sets the background model and the windows that createFitNoG fits.
+	 */
+	void setModel(double[] x, double[][] bcoeffs, int bStart, int bEnd, int eStart, int eEnd, CSI_FitModel fit) {
+		this.x = x;
+		this.bcoeffs = bcoeffs;
+		this.fit = fit;
+		this.bStart = bStart;
+		this.bEnd = bEnd;
+		this.eStart = eStart;
+		this.eEnd = eEnd;
 	}
 
-	double[][] createFitNoG(double[] x, Matrix y, int bStart, int bEnd, int eStart, int eEnd) {
-		int sb = bEnd - bStart;
-		int se = eEnd - eStart;
-		long col = y.getColumnCount();
-		Matrix m;
-		Matrix n;
-		Matrix coeffs;
-		double[][] bAndE = new double[2][(int) col];
-		double pix;
+	/*
+	 * spectra holds, for the count pixels from pixel first on, the
+	 * background window channels followed by the edge window channels. Row
+	 * 0 of bAndE receives the least squares scale of each pixel's background
+	 * model, row 1 the integrated signal above the scaled background. If
+	 * negative is not null it receives the number of edge channels per pixel
+	 * that went negative.
+	 */
+	void createFitNoG(final float[] spectra, final int first, int count, final double[][] bAndE,
+			final float[] negative) {
+		final int sb = bEnd - bStart;
+		final int se = eEnd - eStart;
+		final int s = sb + se;
 
-		for (int p = 0; p < col; p++) {
-			m = DenseMatrix.Factory.zeros(sb, 1);
-			n = DenseMatrix.Factory.zeros(sb, 1);
-			coeffs = DenseMatrix.Factory.zeros(1, 1);
-			for (int e = 0; e < sb; e++) {
-				m.setAsDouble(backgroundsAndEdges[p].getAsDouble(e, 0), e, 0);
-				n.setAsDouble(y.getAsDouble(e + bStart, p), e, 0);
-			}
-			try {
-				coeffs = m.solve(n);
-			} catch (Exception e) {
-				return bAndE;
-			}
-			bAndE[0][p] = coeffs.getAsDouble(0, 0);
-			pix = 0;
-			for (int e = 0; e < se; e++) {
-				pix += y.getAsDouble(e + eStart, p) - bAndE[0][p] * backgroundsAndEdges[p].getAsDouble(e + sb, 0);
+		CSI_FitExecutor.forEachChunk(count, new CSI_FitExecutor.Chunk() {
+			public void run(int from, int to) {
+				double mm, my, m, scale, pix, sub;
+				for (int p = first + from; p < first + to; p++) {
+					mm = 0;
+					my = 0;
+					for (int e = 0, o = (p - first) * s; e < sb; e++, o++) {
+						m = fit.getFitAtX(bcoeffs, p, x[e + bStart]);
+						mm += m * m;
+						my += m * spectra[o];
+					}
+					// A background that is zero everywhere has nothing to scale
+					scale = mm > 0 ? my / mm : 0;
+					pix = 0;
+					for (int e = 0, o = (p - first) * s + sb; e < se; e++, o++) {
+						sub = spectra[o] - scale * fit.getFitAtX(bcoeffs, p, x[e + eStart]);
+						if (negative != null && sub < 0)
+							negative[p]++;
+						pix += sub;
+					}
+					bAndE[0][p] = scale;
+					bAndE[1][p] = pix;
+				}
 			}
-			bAndE[1][p] = pix;
-		}
-		return bAndE;
+		});
 	}
-}
\ No newline at end of file
+}
@@ -1,23 +1,45 @@
 package com.spectrumimager.CSI;
 
-import org.ujmp.core.DenseMatrix;
-import org.ujmp.core.Matrix;
-
 /*
  * Fit class for when no fitting is desired.
  */
-class CSI_NoFit extends CSI_Fit {
+public class CSI_NoFit extends CSI_Fit {
+	public String getName() {
+		return CSI_FitModels.NO_FIT;
+	}
+
+	@Override
+	public double[][] fit(double[] xWindow, float[] spectra, int count, CSI_FitQuality quality) {
+		double[][] coeffs = new double[2][count];
+		if (quality != null) {
+			for (int p = 0; p < count; p++)
+				quality.add(p, 0, xWindow, spectra, p * xWindow.length, this, coeffs);
+		}
+		return coeffs;
+	}
+
+	// No fit doesn't have a well-defined residual, so we're just using 0s
 	@Override
-	Matrix createFit(double[] x, Matrix y, int start, int end) {
-		// No fit doesn't have a well-defined residual, so we're just using 0s
-		this.Residual = DenseMatrix.Factory.zeros(end - start, y.getColumnCount());
-		return DenseMatrix.Factory.zeros(2, y.getColumnCount());
+	public double getResidual(double[][] coeffs, int p, double xi, double yi) {
+		return 0;
 	}
 
 	protected double getFitAtX(double c0, double c1, double xi) {
 		return 0;
 	}
 
+	protected double getFitAtFx(double c0, double c1, double fxi) {
+		return 0;
+	}
+
+	FitSum getFitSum(double[] x, int from, int to) {
+		return new FitSum() {
+			double sum(double c0, double c1) {
+				return 0;
+			}
+		};
+	}
+
 	protected double fx(double xi) {
 		return 0;
 	}
@@ -25,4 +47,4 @@ class CSI_NoFit extends CSI_Fit {
 	protected double fy(double yi) {
 		return 0;
 	}
-}
\ No newline at end of file
+}
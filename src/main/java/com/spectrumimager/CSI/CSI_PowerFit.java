@@ -3,11 +3,21 @@ package com.spectrumimager.CSI;
 /*
  * Fit class for a power law function.
  */
-class CSI_PowerFit extends CSI_Fit {
+public class CSI_PowerFit extends CSI_Fit {
+	public String getName() {
+		return "Power";
+	}
+
 	protected double getFitAtX(double c0, double c1, double xi) {
 		if (c0 == 0 && c1 == 0)
 			return 0;
-		return Math.exp(c0 + Math.log(xi) * c1) + ymin - 1;
+		return Math.exp(c0 + Math.log(xi) * c1);
+	}
+
+	protected double getFitAtFx(double c0, double c1, double fxi) {
+		if (c0 == 0 && c1 == 0)
+			return 0;
+		return Math.exp(c0 + c1 * fxi);
 	}
 
 	protected double fx(double xi) {
@@ -17,4 +27,4 @@ class CSI_PowerFit extends CSI_Fit {
 	protected double fy(double yi) {
 		return Math.log(Math.max(1E-3, yi));
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,124 @@
+package com.spectrumimager.CSI;
+
+import ij.IJ;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/*
+ * Cumulative sums along energy of every pixel of a dataset: plane k holds
+ * the sum of channels [0, k), so the counts of a pixel over any window of
+ * channels are the difference of two planes. Planes are kept in double, one
+ * array per channel, so a map over a window reads two arrays from start to
+ * end. The sums take twice the memory of a float cube and are not built
+ * if they would take more than MEMORY_FRACTION of ImageJ's memory. They
+ * stop being valid when the image is edited or closed, and whoever keeps
+ * them calls release() when dropping them.
+ */
+class CSI_PrefixSums implements ImageListener {
+	static final double MEMORY_FRACTION = 0.4;
+
+	final ImagePlus img;
+	final ImageStack stack;
+	private final int edits;
+	private volatile double[][] planes;
+	private volatile boolean stale;
+
+	private CSI_PrefixSums(ImagePlus img, ImageStack stack, int edits, double[][] planes) {
+		this.img = img;
+		this.stack = stack;
+		this.edits = edits;
+		this.planes = planes;
+	}
+
+	/*
+	 * Memory the sums of img take.
+	 */
+	static long bytes(ImagePlus img) {
+		return 8L * img.getWidth() * img.getHeight() * (img.getStackSize() + 1);
+	}
+
+	/*
+	 * Builds the sums of img, reading the stack one slice at a time, or
+	 * returns null if they are too large.
+	 */
+	static CSI_PrefixSums build(ImagePlus img) {
+		final ImageStack stack = img.getStack();
+		int edits = CSI_EditCounter.getCount(img);
+		final int n = stack.getWidth() * stack.getHeight();
+		int size = stack.getSize();
+		if (bytes(img) > IJ.maxMemory() * MEMORY_FRACTION)
+			return null;
+		double[][] planes = new double[size + 1][];
+		planes[0] = new double[n];
+		for (int k = 0; k < size; k++) {
+			CSI_JobQueue.checkCancelled();
+			final double[] last = planes[k], next = new double[n];
+			final Object pixels = stack.getPixels(k + 1);
+			final ImageProcessor ip = pixels instanceof float[] || pixels instanceof short[]
+					|| pixels instanceof byte[] ? null : stack.getProcessor(k + 1);
+			CSI_FitExecutor.forEachChunk(n, new CSI_FitExecutor.Chunk() {
+				public void run(int from, int to) {
+					if (pixels instanceof float[]) {
+						float[] f = (float[]) pixels;
+						for (int p = from; p < to; p++)
+							next[p] = last[p] + f[p];
+					} else if (pixels instanceof short[]) {
+						short[] h = (short[]) pixels;
+						for (int p = from; p < to; p++)
+							next[p] = last[p] + (h[p] & 0xffff);
+					} else if (pixels instanceof byte[]) {
+						byte[] b = (byte[]) pixels;
+						for (int p = from; p < to; p++)
+							next[p] = last[p] + (b[p] & 0xff);
+					} else {
+						for (int p = from; p < to; p++)
+							next[p] = last[p] + ip.getf(p);
+					}
+				}
+			});
+			planes[k + 1] = next;
+		}
+		CSI_PrefixSums sums = new CSI_PrefixSums(img, stack, edits, planes);
+		CSI_EditCounter.addListener(sums);
+		return sums;
+	}
+
+	boolean isValid() {
+		return !stale && img.getStack() == stack && CSI_EditCounter.getCount(img) == edits;
+	}
+
+	/*
+	 * Plane k, the sums of channels [0, k) of every pixel, or null once
+	 * released.
+	 */
+	double[] getPlane(int k) {
+		double[][] p = planes;
+		return p == null ? null : p[k];
+	}
+
+	/*
+	 * Stops listening to the image and drops the planes; callers still
+	 * holding planes keep them until they are done.
+	 */
+	void release() {
+		stale = true;
+		planes = null;
+		CSI_EditCounter.removeListener(this);
+	}
+
+	public void imageOpened(ImagePlus imp) {
+	}
+
+	public void imageClosed(ImagePlus imp) {
+		if (imp == img)
+			release();
+	}
+
+	// As for the cube cache, only edits invalidate the sums, not scrolling.
+	public void imageUpdated(ImagePlus imp) {
+		if (imp == img && CSI_EditCounter.getCount(imp) != edits)
+			release();
+	}
+}
@@ -0,0 +1,277 @@
+package com.spectrumimager.CSI;
+
+import ij.IJ;
+
+/*
+ * Estimate of the peak memory and floating point work of an operation on a
+ * spectrum image, made before it starts. bytes is the peak if the data is
+ * read in one piece, minBytes the peak when it is read in tiles of one row
+ * (the same as bytes for operations that need every pixel at once, such as
+ * PCA). From these and the free memory the plan is to work in memory, in
+ * tiles or to refuse; the running job's plan sets the tiles tileRows()
+ * picks. Jobs run one at a time, so a job is admitted on its own, against
+ * MEMORY_FRACTION of ImageJ's memory less what the caches built in the
+ * background (pyramids, summed-area tables, live maps) hold through
+ * tryReserve(). Those never wait: a cache that does not fit is not built.
+ * Estimates count the arrays the operations allocate and ignore small
+ * ones, so they are approximate.
+ */
+class CSI_Preflight {
+	static final double MEMORY_FRACTION = 0.8;
+	static final int IN_MEMORY = 0, TILED = 1, REFUSE = 2;
+	static final String[] PLANS = { "in memory", "in tiles", "too large" };
+
+	private static long reserved;
+	private static CSI_Preflight running;
+
+	final String operation;
+	private long bytes, minBytes, held;
+	private double flops;
+	private int plan = -1;
+
+	private CSI_Preflight(String operation) {
+		this.operation = operation;
+	}
+
+	private CSI_Preflight add(long whole, long tiled, double ops) {
+		bytes += whole;
+		minBytes += tiled;
+		flops += ops;
+		return this;
+	}
+
+	long getBytes() {
+		return bytes;
+	}
+
+	long getMinBytes() {
+		return minBytes;
+	}
+
+	double getFlops() {
+		return flops;
+	}
+
+	int getPlan() {
+		long available = getAvailable();
+		if (bytes <= available)
+			return IN_MEMORY;
+		return minBytes <= available ? TILED : REFUSE;
+	}
+
+	/*
+	 * Memory an operation can count on: the free memory, within what
+	 * running jobs have not reserved.
+	 */
+	static synchronized long getAvailable() {
+		long free = IJ.maxMemory() - IJ.currentMemory();
+		return Math.max(0, Math.min(free, (long) (IJ.maxMemory() * MEMORY_FRACTION) - reserved));
+	}
+
+	/*
+	 * Holds the memory of the plan until release(), fixing the plan for
+	 * tileRows().
+	 */
+	void reserve() {
+		synchronized (CSI_Preflight.class) {
+			plan = getPlan();
+			held = plan == IN_MEMORY ? bytes : minBytes;
+			reserved += held;
+			running = this;
+		}
+	}
+
+	void release() {
+		synchronized (CSI_Preflight.class) {
+			reserved -= held;
+			held = 0;
+			if (running == this)
+				running = null;
+		}
+	}
+
+	/*
+	 * The plan of the running job, or -1 outside of jobs.
+	 */
+	static synchronized int getRunningPlan() {
+		return running == null ? -1 : running.plan;
+	}
+
+	/*
+	 * Holds bytes for a cache built in the background if they fit in what
+	 * is available, returning whether they did. The cache gives them back
+	 * with unreserve() when it is dropped.
+	 */
+	static synchronized boolean tryReserve(long bytes) {
+		if (bytes > getAvailable())
+			return false;
+		reserved += bytes;
+		return true;
+	}
+
+	static synchronized void unreserve(long bytes) {
+		reserved -= bytes;
+	}
+
+	public String toString() {
+		return operation + ": about " + format(bytes) + (minBytes < bytes ? " (" + format(minBytes) + " in tiles)" : "")
+				+ " and " + IJ.d2s(flops / 1E9, 1) + " GFLOP, " + PLANS[getPlan()];
+	}
+
+	/*
+	 * Message for an operation that was refused.
+	 */
+	String getRefusal() {
+		return operation + " needs about " + format(minBytes) + " but only " + format(getAvailable())
+				+ " are free.\nNarrow the windows or give ImageJ more memory (Edit>Options>Memory & Threads).";
+	}
+
+	private static String format(long b) {
+		return b < 1L << 30 ? IJ.d2s(b / (double) (1 << 20), 0) + " MB" : IJ.d2s(b / (double) (1L << 30), 1) + " GB";
+	}
+
+	/*
+	 * The background fit with fit over [fitStart, fitEnd), nothing if it is
+	 * cached.
+	 * Each pixel costs a few operations per channel, a few times more for
+	 * the weighted fits, plus the blur when oversampling.
+	 */
+	static CSI_Preflight fit(CSI_SpectrumData2D data, CSI_FitModel fit, int fitStart, int fitEnd, double sigma,
+			boolean quality) {
+		CSI_Preflight p = new CSI_Preflight("Background fit");
+		long n = pixels(data);
+		int w = data.img.getWidth();
+		int s = fitEnd - fitStart;
+		p.addCube(data);
+		if (CSI_FitCache.get(data.img, fit.getName(), data.x, fitStart, fitEnd, sigma) != null)
+			return p;
+		long coeffs = 16 * n + (quality ? 12 * n : 0);
+		// Models with shared parameters are not tiled, except LCPL, which
+		// takes a first pass for its exponents
+		boolean lcpl = fit instanceof CSI_LCPLFit;
+		boolean whole = fit.sharesParameters() && !lcpl;
+		double ops = n * s * (fit instanceof CSI_WeightedPowerFit || fit instanceof CSI_WeightedExponentialFit
+				? 8 * CSI_Fit.IRLS_PASSES : 6);
+		if (sigma > 0)
+			ops += 2 * (2 * Math.ceil(4 * sigma) + 1) * n * s;
+		// Tiled, LCPL also holds the exponent of every pixel
+		return p.add(4 * n * s + coeffs, (whole ? 4 * n * s : 4L * w * s + (lcpl ? 8 * n : 0)) + coeffs, ops);
+	}
+
+	static CSI_Preflight integrate(CSI_SpectrumData2D data, int fitStart, int fitEnd, int intStart, int intEnd,
+			CSI_FitSettings settings) {
+		long n = pixels(data);
+		int c = intEnd - intStart + 1;
+		return fit(data, settings.fit, fitStart, fitEnd, 0, settings.fitQuality).named("Integrate").add(12 * n, 12 * n, 3.0 * n * c);
+	}
+
+	static CSI_Preflight fitToModel(CSI_SpectrumData2D data, int fitStart, int fitEnd, int intStart, int intEnd,
+			CSI_FitSettings settings) {
+		long n = pixels(data);
+		int w = data.img.getWidth();
+		int s = fitEnd - fitStart + intEnd - intStart;
+		return fit(data, settings.fit, fitStart, fitEnd, settings.getSigma(), settings.fitQuality).named("Integrate").add(4 * n * s + 20 * n,
+				4L * w * s + 20 * n, 4.0 * n * s);
+	}
+
+	static CSI_Preflight subtract(CSI_SpectrumData2D data, int fitStart, int fitEnd, CSI_FitSettings settings) {
+		long n = pixels(data);
+		int size = data.size;
+		long out = 4 * n * size + (settings.fitResidual ? 4 * n * (fitEnd - fitStart) : 0);
+		return fit(data, settings.fit, fitStart, fitEnd, settings.getSigma(), false).named("Background subtract").add(out, out,
+				2.0 * n * (size - fitStart));
+	}
+
+	/*
+	 * PCA holds the (channel x pixel) matrix, the copy the SVD works on,
+	 * the pixel factors and their transpose, and the rows taken from them.
+	 */
+	static CSI_Preflight PCA(CSI_SpectrumData2D data, int fitStart, int fitEnd, int pcaStart, int pcaEnd,
+			CSI_FitSettings settings, boolean weighted) {
+		long n = pixels(data);
+		long m = pcaEnd - pcaStart;
+		long matrices = (weighted ? 6 : 5) * 8 * m * n;
+		double sigma = weighted ? 0 : settings.getSigma();
+		return fit(data, settings.fit, fitStart, fitEnd, sigma, false).named("PCA").add(matrices, matrices, svd(m, n) + 2.0 * m * n);
+	}
+
+	/*
+	 * As PCA, plus the product rebuilding the filtered data and the
+	 * filtered stack.
+	 */
+	static CSI_Preflight fitToBosman(CSI_SpectrumData2D data, int fitStart, int fitEnd) {
+		long n = pixels(data);
+		long m = fitEnd - fitStart;
+		long b = 6 * 8 * m * n + 4 * n * data.size;
+		return new CSI_Preflight("Bosman").addCube(data).add(b, b, svd(m, n) + 2.0 * m * m * n);
+	}
+
+	/*
+	 * The sweep reads the cumulative sums if they are kept, building them if
+	 * they are not built yet, or else integrates every window from the stack.
+	 */
+	static CSI_Preflight sweep(CSI_SpectrumData2D data, int fitStart, int fitEnd, int from, int to, int width,
+			int step, CSI_FitSettings settings) {
+		long n = pixels(data);
+		int count = (to - width - from) / step + 1;
+		CSI_Preflight p = fit(data, settings.fit, fitStart, fitEnd, 0, false).named("Sweep");
+		long maps = 4 * n * count + 8 * n;
+		boolean kept = data.prefixSums != null && data.prefixSums.isValid();
+		long sums = CSI_PrefixSums.bytes(data.img);
+		if (data.csi_Spectrum_Analyzer.energySums && kept)
+			return p.add(maps, maps, 4.0 * n * count);
+		if (data.csi_Spectrum_Analyzer.energySums && sums <= IJ.maxMemory() * CSI_PrefixSums.MEMORY_FRACTION)
+			return p.add(sums + maps, sums + maps, n * (data.size + 4.0 * count));
+		return p.add(maps, maps, 3.0 * n * width * count);
+	}
+
+	static CSI_Preflight mapEdges(CSI_SpectrumData2D data, CSI_Edge[] edges, CSI_FitSettings settings) {
+		CSI_Preflight p = new CSI_Preflight("Map several edges").addCube(data);
+		long n = pixels(data);
+		int w = data.img.getWidth();
+		int lo = data.size, hi = 0, sMax = 0;
+		double ops = 0;
+		for (CSI_Edge edge : edges) {
+			int s = edge.fitEnd - edge.fitStart + edge.intEnd - edge.intStart;
+			lo = Math.min(lo, Math.min(edge.fitStart, edge.intStart));
+			hi = Math.max(hi, Math.max(edge.fitEnd, edge.intEnd));
+			sMax = Math.max(sMax, s);
+			ops += 10.0 * n * s;
+		}
+		// The tile, its blurred copy if oversampled, and the windows of an edge
+		long channels = (settings.getSigma() > 0 ? 2 : 1) * Math.max(0, hi - lo) + 2 * sMax;
+		long maps = 4 * n * edges.length + 16 * n;
+		for (CSI_Edge edge : edges) {
+			if (edge.fit instanceof CSI_LCPLFit)
+				maps += 8 * n;
+		}
+		return p.add(4 * n * channels + maps, 4L * w * channels + maps, ops);
+	}
+
+	private CSI_Preflight named(String name) {
+		CSI_Preflight p = new CSI_Preflight(name);
+		return p.add(bytes, minBytes, flops);
+	}
+
+	/*
+	 * The dataset's cube, if reading it will build one, see CSI_CubeCache.
+	 */
+	private CSI_Preflight addCube(CSI_SpectrumData2D data) {
+		long cube = 4 * pixels(data) * data.size;
+		if (!CSI_CubeCache.contains(data.img) && cube <= IJ.maxMemory() * CSI_CubeCache.MEMORY_FRACTION)
+			add(cube, cube, 0);
+		return this;
+	}
+
+	private static long pixels(CSI_SpectrumData2D data) {
+		return (long) data.img.getWidth() * data.img.getHeight();
+	}
+
+	/*
+	 * Operations of a thin SVD of an m x n matrix.
+	 */
+	private static double svd(double m, double n) {
+		double k = Math.min(m, n), l = Math.max(m, n);
+		return 4 * k * k * l + 22 * k * k * k;
+	}
+}
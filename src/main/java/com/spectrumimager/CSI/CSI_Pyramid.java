@@ -0,0 +1,236 @@
+package com.spectrumimager.CSI;
+
+import java.awt.Rectangle;
+
+import ij.IJ;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+
+/*
+ * Spatially binned copies of a dataset, FACTORS[l] pixels on a side per bin,
+ * for previews while the selection moves. Each level holds the mean
+ * spectrum of every bin with one spectrum after the other, as the cubes of
+ * CSI_CubeCache do; bins at the right and bottom edges average the pixels
+ * they have. The finest level is read from the stack and each coarser level
+ * is binned from the one before, on a background thread started by the
+ * first request; levels can be used as soon as they are done. Only the
+ * coarsest levels that fit in MEMORY_FRACTION of ImageJ's memory are built,
+ * and only if CSI_Preflight can reserve them; stop() gives them back. As
+ * the cubes of CSI_CubeCache, the levels are dropped when the image is
+ * edited or closed.
+ */
+class CSI_Pyramid implements ImageListener {
+	static final int[] FACTORS = { 2, 4, 8 };
+	static final double MEMORY_FRACTION = 0.1;
+	// A level is used for a selection at least this many bins across
+	static final int MIN_BINS = 4;
+
+	final ImagePlus img;
+	final ImageStack stack;
+	private final int edits, width, height, size;
+	private final float[][] levels = new float[FACTORS.length][];
+	private Thread thread;
+	private volatile boolean stopped;
+	private long held;
+
+	CSI_Pyramid(ImagePlus img) {
+		this.img = img;
+		stack = img.getStack();
+		edits = CSI_EditCounter.getCount(img);
+		width = stack.getWidth();
+		height = stack.getHeight();
+		size = stack.getSize();
+	}
+
+	/*
+	 * Starts building the levels, unless started before or too large.
+	 */
+	synchronized void build() {
+		if (thread != null || stopped)
+			return;
+		long bytes = 0, need = 0;
+		int first = FACTORS.length;
+		for (int l = FACTORS.length - 1; l >= 0; l--) {
+			long level = (long) bins(width, FACTORS[l]) * bins(height, FACTORS[l]) * size;
+			bytes += 4 * level;
+			if (bytes > IJ.maxMemory() * MEMORY_FRACTION || level > Integer.MAX_VALUE)
+				break;
+			first = l;
+			need = bytes;
+		}
+		if (first == FACTORS.length || !CSI_Preflight.tryReserve(need))
+			return;
+		held = need;
+		CSI_EditCounter.addListener(this);
+		final int l0 = first;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int l = l0; l < FACTORS.length && !stopped; l++) {
+						float[] finer = l == l0 ? null : getLevel(l - 1);
+						if (l > l0 && finer == null)
+							return;
+						float[] level = l == l0 ? bin(stack, FACTORS[l]) : bin(finer, FACTORS[l - 1], FACTORS[l]);
+						synchronized (CSI_Pyramid.this) {
+							if (stopped)
+								return;
+							levels[l] = level;
+						}
+					}
+				} catch (OutOfMemoryError e) {
+					// Keep the levels built so far
+				}
+			}
+		}, "CSI pyramid");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * Stops the build and drops the levels.
+	 */
+	synchronized void stop() {
+		stopped = true;
+		for (int l = 0; l < FACTORS.length; l++)
+			levels[l] = null;
+		CSI_Preflight.unreserve(held);
+		held = 0;
+		CSI_EditCounter.removeListener(this);
+	}
+
+	/*
+	 * Whether the levels are (being) built from the image's current stack.
+	 */
+	boolean isValid() {
+		return !stopped && img.getStack() == stack && CSI_EditCounter.getCount(img) == edits;
+	}
+
+	synchronized boolean isBuilding() {
+		return thread != null && thread.isAlive();
+	}
+
+	/*
+	 * Mean spectrum of the bins whose centers are in roi, from the coarsest
+	 * level built that is at least MIN_BINS bins across the selection, or
+	 * null if there is none.
+	 */
+	double[] getMeans(Roi roi) {
+		Rectangle r = roi.getBounds().intersection(new Rectangle(width, height));
+		for (int l = FACTORS.length - 1; l >= 0; l--) {
+			int f = FACTORS[l];
+			float[] level = getLevel(l);
+			if (level == null || r.width < MIN_BINS * f || r.height < MIN_BINS * f)
+				continue;
+			double[] means = new double[size];
+			int bw = bins(width, f);
+			double n = 0;
+			for (int bj = r.y / f; bj <= (r.y + r.height - 1) / f; bj++) {
+				for (int bi = r.x / f; bi <= (r.x + r.width - 1) / f; bi++) {
+					int i = Math.min(bi * f + f / 2, width - 1), j = Math.min(bj * f + f / 2, height - 1);
+					if (!roi.contains(i, j))
+						continue;
+					// Edge bins count for the pixels they hold
+					double weight = (double) (Math.min(width, bi * f + f) - bi * f) * (Math.min(height, bj * f + f) - bj * f);
+					for (int k = 0, o = (bw * bj + bi) * size; k < size; k++, o++)
+						means[k] += weight * level[o];
+					n += weight;
+				}
+			}
+			if (n == 0)
+				return null;
+			for (int k = 0; k < size; k++)
+				means[k] /= n;
+			return means;
+		}
+		return null;
+	}
+
+	/*
+	 * Level l, or null if it is not built (yet).
+	 */
+	synchronized float[] getLevel(int l) {
+		return levels[l];
+	}
+
+	int getWidth(int l) {
+		return bins(width, FACTORS[l]);
+	}
+
+	int getHeight(int l) {
+		return bins(height, FACTORS[l]);
+	}
+
+	/*
+	 * The level of bins f pixels on a side, read from the stack one slice at
+	 * a time.
+	 */
+	private float[] bin(ImageStack stack, int f) {
+		int bw = bins(width, f), bh = bins(height, f);
+		float[] level = new float[bw * bh * size];
+		float[] counts = counts(f, bw, bh);
+		for (int k = 0; k < size && !stopped; k++) {
+			float[] pixels = (float[]) stack.getProcessor(k + 1).convertToFloat().getPixels();
+			for (int j = 0; j < height; j++)
+				for (int i = 0, p = width * j, o = (bw * (j / f)) * size + k; i < width; i++, p++)
+					level[o + i / f * size] += pixels[p];
+			for (int b = 0, o = k; b < bw * bh; b++, o += size)
+				level[o] /= counts[b];
+		}
+		return level;
+	}
+
+	/*
+	 * Bins level, with bins from pixels on a side, to bins to pixels on a side.
+	 */
+	private float[] bin(float[] level, int from, int to) {
+		int fw = bins(width, from), fh = bins(height, from);
+		int bw = bins(width, to), bh = bins(height, to);
+		int r = to / from;
+		float[] coarse = new float[bw * bh * size];
+		float[] counts = counts(to, bw, bh);
+		for (int fj = 0; fj < fh; fj++) {
+			for (int fi = 0; fi < fw; fi++) {
+				float weight = (Math.min(width, fi * from + from) - fi * from) * (Math.min(height, fj * from + from) - fj * from);
+				int o = (bw * (fj / r) + fi / r) * size, p = (fw * fj + fi) * size;
+				for (int k = 0; k < size; k++)
+					coarse[o + k] += weight * level[p + k];
+			}
+		}
+		for (int b = 0; b < bw * bh; b++)
+			for (int k = 0, o = b * size; k < size; k++, o++)
+				coarse[o] /= counts[b];
+		return coarse;
+	}
+
+	/*
+	 * Pixels in each bin of f pixels on a side.
+	 */
+	private float[] counts(int f, int bw, int bh) {
+		float[] counts = new float[bw * bh];
+		for (int bj = 0; bj < bh; bj++)
+			for (int bi = 0; bi < bw; bi++)
+				counts[bw * bj + bi] = (Math.min(width, bi * f + f) - bi * f) * (Math.min(height, bj * f + f) - bj * f);
+		return counts;
+	}
+
+	private static int bins(int n, int f) {
+		return (n + f - 1) / f;
+	}
+
+	public void imageOpened(ImagePlus imp) {
+	}
+
+	public void imageClosed(ImagePlus imp) {
+		if (imp == img)
+			stop();
+	}
+
+	// As for the cube cache, only edits invalidate the levels, not scrolling.
+	public void imageUpdated(ImagePlus imp) {
+		if (imp == img && CSI_EditCounter.getCount(imp) != edits)
+			stop();
+	}
+}
@@ -0,0 +1,38 @@
+package com.spectrumimager.CSI;
+
+import java.io.IOException;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.ImportDialog;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+/*
+ * Opens a raw spectrum image (one energy slice after the other) as a memory
+ * mapped stack, so files larger than the heap can be analyzed.
+ */
+public class CSI_Raw_Reader implements PlugIn {
+
+	public void run(String arg) {
+		OpenDialog od = new OpenDialog("Open Raw Spectrum Image...", arg);
+		if (od.getFileName() == null)
+			return;
+		FileInfo fi = new ImportDialog(od.getFileName(), od.getDirectory()).getFileInfo();
+		if (fi == null)
+			return;
+		try {
+			CSI_MappedStack stack = CSI_MappedStack.open(fi);
+			if (stack == null) {
+				IJ.error("CSI Raw Reader", "Only 8, 16 and 32 bit grayscale data without gaps,\nwith slices under 2 GB, can be mapped.");
+				return;
+			}
+			ImagePlus imp = new ImagePlus(fi.fileName, stack);
+			imp.show();
+			IJ.resetMinAndMax();
+		} catch (IOException e) {
+			IJ.error("CSI Raw Reader", "Error mapping file: " + e.getMessage());
+		}
+	}
+}
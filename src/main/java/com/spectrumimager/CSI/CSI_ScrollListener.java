@@ -83,6 +83,16 @@ class CSI_ScrollListener implements ChangeListener {
 			this.csi_Spectrum_Analyzer.state.cX1 = this.csi_Spectrum_Analyzer.sldCRight.getValue();
 			this.csi_Spectrum_Analyzer.txtRightCalibration.setText(String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[this.csi_Spectrum_Analyzer.state.cX1]));
 		}
+		if (s == this.csi_Spectrum_Analyzer.sldLeft || s == this.csi_Spectrum_Analyzer.sldWidth
+				|| s == this.csi_Spectrum_Analyzer.sldILeft || s == this.csi_Spectrum_Analyzer.sldIWidth)
+			this.csi_Spectrum_Analyzer.state.updatePreview();
+		// The integration and calibration windows do not change the fit or the
+		// scale, so only the windows are redrawn
+		if (s == this.csi_Spectrum_Analyzer.sldILeft || s == this.csi_Spectrum_Analyzer.sldIWidth
+				|| s == this.csi_Spectrum_Analyzer.sldCLeft || s == this.csi_Spectrum_Analyzer.sldCRight) {
+			this.csi_Spectrum_Analyzer.state.updateWindows();
+			return;
+		}
 		this.csi_Spectrum_Analyzer.state.pwin.pack();
 		this.csi_Spectrum_Analyzer.state.updateProfile();
 	}
@@ -2,6 +2,7 @@ package com.spectrumimager.CSI;
 
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.Toolkit;
@@ -12,9 +13,6 @@ import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.util.Arrays;
 
-import org.ujmp.core.DenseMatrix;
-import org.ujmp.core.Matrix;
-
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -45,10 +43,18 @@ public abstract class CSI_SpectrumData implements MouseListener, MouseMotionList
 	double[] x, y, yfit, ysubtracted;
 	int size, X0, X1, iX0, iX1, cX0, cX1, plotHeight, plotWidth, marginHeight, marginWidth;
 	double zoomfactor, windowOffset; // Plot properties, zoom and offset
+	long lastProgress; // Time of the last progress update
+	final CSI_LiveProfile liveProfile = new CSI_LiveProfile(this); // Reads profiles off the event thread
 	String xLabel, yLabel; // Axis labels
 	ImagePlus img;
-	CSI_Fit fit;
+	CSI_FitModel fit;
 	PlotWindow pwin;
+	Plot plot; // The plot shown, and its image without the windows
+	ImageProcessor plotLayers;
+	double[][] fitCoeffs; // Fit of fittedY over [fittedX0, fittedX1)
+	double[] fittedY;
+	int fittedX0, fittedX1;
+	CSI_FitModel fittedModel;
 
 	CSI_SpectrumData(CSI_Spectrum_Analyzer csi_Spectrum_Analyzer, ImagePlus img)
 	{
@@ -59,7 +65,7 @@ public abstract class CSI_SpectrumData implements MouseListener, MouseMotionList
 		y = getProfile();
 		zoomfactor = 1; // Default zoom factor 1x zoom.
 		windowOffset = 0; // Default, no window offset
-		setFit(NO_FIT); // Default 'No Fit'
+		setFit(CSI_FitModels.NO_FIT); // Default 'No Fit'
 		if (y != null) {
 			x = new double[y.length];
 			Calibration cal = img.getCalibration();
@@ -79,29 +85,40 @@ public abstract class CSI_SpectrumData implements MouseListener, MouseMotionList
 		}
 	}
 
-	static final int NO_FIT = 0;
-	static final int CONSTANT_FIT = 1;
-	static final int LINEAR_FIT = 2;
-	static final int EXPONENTIAL_FIT = 3;
-	static final int POWER_FIT = 4;
-	static final int LCPL_FIT = 5;
-
-	abstract ImagePlus integrate(int fitStart, int fitEnd, int intStart, int intEnd);
+	abstract ImagePlus integrate(int fitStart, int fitEnd, int intStart, int intEnd, CSI_FitSettings settings);
 
 	abstract ImagePlus HCMintegrate(int fitStart, int fitEnd, int intStart, int intEnd);
 
-	abstract void PCA(int fitStart, int fitEnd, int intStart, int intEnd);
+	abstract void PCA(int fitStart, int fitEnd, int intStart, int intEnd, CSI_FitSettings settings);
 
-	abstract void weightedPCA(int fitStart, int fitEnd, int intStart, int intEnd);
+	abstract void weightedPCA(int fitStart, int fitEnd, int intStart, int intEnd, CSI_FitSettings settings);
 
-	abstract ImagePlus subtract(int fitStart, int fitEnd);
+	abstract ImagePlus subtract(int fitStart, int fitEnd, CSI_FitSettings settings);
 
-	abstract ImagePlus fitToModel(int fitStart, int fitEnd, int intStart, int intEnd);
+	abstract ImagePlus fitToModel(int fitStart, int fitEnd, int intStart, int intEnd, CSI_FitSettings settings);
 
 	abstract ImagePlus fitToBosman(int fitStart, int fitEnd, int intStart, int intEnd);
 
 	abstract double[] getProfile();
 
+	/*
+	 * Updates the live map preview after a window has moved, if there is one.
+	 */
+	void updatePreview() {
+	}
+
+	void stopLiveUpdates() {
+		liveProfile.stop();
+	}
+
+	/*
+	 * A quick approximation of getProfile() to show while the selection
+	 * moves, or null if there is none.
+	 */
+	double[] getPreviewProfile() {
+		return null;
+	}
+
 	abstract int getSize();
 
 	void updateProfile() {
@@ -122,53 +139,24 @@ public abstract class CSI_SpectrumData implements MouseListener, MouseMotionList
 				(int) Math.ceil(size / zoomfactor));
 		double[] ysubrange = new double[(int) Math.ceil(size / zoomfactor)];
 
-		/* 
-		 * Previous versions of this code relied in Jama.Matrix having a constructor that allowed
-		 * for the user to pass in an array that actually represented a matrix in column-major order
-		 * and the number of rows that were in that "packed" matrix.
-		 * However, UJMP dropped this "feature" (for good reason).
-		 *
-		 * To remedy this situation, we create an array that represents the same "packed" matrix as
-		 * y, but in our case it is in row-major order (SINCE THAT'S HOW JAVA WORKS!!!). We then use
-		 * that array to fill in our matrix.
-		 * 
-		 * In our case, since y is actually a matrix in column-major order of number of rows "size":
-		 * y.length = size * X, where X is the number of columns.
-		 * Therefore, the number of columns is y.length / size
-		 * 
-		 *  - Pedro R (Imxset21), Dec 22 2015
-		 *  
-		 *  
-		 *  Fixed issue with incorrect numbering that caused spectrum analyzer to throw exception.
-		 *  Needed to revise function to unpack column organized matrix. 
-		 *  
-		 *  - Danielle L, Jan 19 2016
-		 *  
-		 */
-		final int y_num_cols = y.length / size;
-		Matrix tmp_mat = DenseMatrix.Factory.zeros(size, y_num_cols);
-	    for (int i = 0; i < size; i++) 
-	    { 
-	    	for (int j = 0; j < y_num_cols; j++) 
-	    	{
-	    		tmp_mat.setAsDouble(y[(j * size) + i], i, j);
-	    	}
-	    }
-		
-		
-		Matrix coeffs = fit.createFit(
-				x, 
-				tmp_mat, // new Jama.Matrix(y, size),
-				X0,
-				X1);
+		// The fit only depends on the spectrum and the background window
+		if (fitCoeffs == null || fittedY != y || fittedX0 != X0 || fittedX1 != X1 || fittedModel != fit) {
+			float[] yWindow = new float[X1 - X0];
+			for (int k = X0; k < X1; k++) {
+				yWindow[k - X0] = (float) y[k];
+			}
+			fitCoeffs = fit.fit(Arrays.copyOfRange(x, X0, X1), yWindow, 1, null);
+			fittedY = y;
+			fittedX0 = X0;
+			fittedX1 = X1;
+			fittedModel = fit;
+		}
+		double[][] coeffs = fitCoeffs;
 
 		yfit = new double[size];
 		ysubtracted = new double[size];
-		double c0, c1;
-		c0 = coeffs.getAsDouble(0, 0);
-		c1 = coeffs.getAsDouble(1, 0);
 		for (int j = 0; j < size; j++) {
-			yfit[j] = fit.getFitAtX(c0, c1, x[j]);
+			yfit[j] = fit.getFitAtX(coeffs, 0, x[j]);
 			if (Math.abs(yfit[j]) > Math.abs(10 * y[j]))
 				ysubtracted[j] = 0;
 			else if ((j < X0) || yfit[j] == 0)
@@ -257,14 +245,37 @@ public abstract class CSI_SpectrumData implements MouseListener, MouseMotionList
 		plot.setColor(this.csi_Spectrum_Analyzer.colSubtracted);
 		plot.addPoints(x, ysubtracted, Plot.LINE);
 
+		// Everything but the windows is kept so they can be moved on their own
+		this.plot = plot;
+		plotLayers = ipplot.duplicate();
+		drawWindows();
+		marginWidth = pwin.getSize().width - PlotWindow.plotWidth;
+		marginHeight = pwin.getSize().height - PlotWindow.plotHeight;
+	}
+
+	/*
+	 * Redraws the windows over the plot when only they have moved, which
+	 * leaves the fit and the rest of the plot as they were.
+	 */
+	void updateWindows() {
+		checkPlotWindow();
+		if (listenersRemoved || plot == null || plotLayers == null || pwin == null
+				|| pwin.getImagePlus().getProcessor() != plot.getProcessor()) {
+			updateProfile();
+			return;
+		}
+		plot.getProcessor().insert(plotLayers, 0, 0);
+		drawWindows();
+		pwin.getImagePlus().updateAndDraw();
+	}
+
+	private void drawWindows() {
 		drawWindow(X0, X1, this.csi_Spectrum_Analyzer.colBackgroundWindow, plot);
 		drawWindow(iX0, iX1, this.csi_Spectrum_Analyzer.colIntWindow, plot);
 
 		if (this.csi_Spectrum_Analyzer.isCalibrating) {
 			drawWindow(cX0, cX1, Color.black, plot);
 		}
-		marginWidth = pwin.getSize().width - PlotWindow.plotWidth;
-		marginHeight = pwin.getSize().height - PlotWindow.plotHeight;
 	}
 
 	void drawWindow(int xI, int xF, Color c, Plot plot) {
@@ -281,33 +292,11 @@ public abstract class CSI_SpectrumData implements MouseListener, MouseMotionList
 		}
 	}
 
-	void setFit(int fitType) {
-		switch (fitType) {
-		case NO_FIT: {
-			fit = new CSI_NoFit();
-			break;
-		}
-		case CONSTANT_FIT: {
-			fit = new CSI_ConstantFit();
-			break;
-		}
-		case LINEAR_FIT: {
-			fit = new CSI_LinearFit();
-			break;
-		}
-		case EXPONENTIAL_FIT: {
-			fit = new CSI_ExponentialFit();
-			break;
-		}
-		case POWER_FIT: {
-			fit = new CSI_PowerFit();
-			break;
-		}
-		case LCPL_FIT: {
-			fit = new CSI_LCPLFit();
-			break;
-		}
-		}
+	/*
+	 * Selects the background model called name (see CSI_FitModels).
+	 */
+	void setFit(String name) {
+		fit = CSI_FitModels.get(name);
 	}
 
 	void positionPlotWindow() {
@@ -367,13 +356,11 @@ public abstract class CSI_SpectrumData implements MouseListener, MouseMotionList
 	}
 
 	public void mouseDragged(MouseEvent e) {
-		y = getProfile();
-		updateProfile();
+		liveProfile.request();
 	}
 
 	public void keyReleased(KeyEvent e) {
-		y = getProfile();
-		updateProfile();
+		liveProfile.request();
 	}
 
 	/*
@@ -397,6 +384,7 @@ public abstract class CSI_SpectrumData implements MouseListener, MouseMotionList
 		canvas.removeKeyListener(this);
 		pwin = null;
 		listenersRemoved = true;
+		stopLiveUpdates();
 	}
 
 	public void keyPressed(KeyEvent e) {
@@ -406,8 +394,7 @@ public abstract class CSI_SpectrumData implements MouseListener, MouseMotionList
 	}
 
 	public void mouseReleased(MouseEvent e) {
-		y = getProfile();
-		updateProfile();
+		liveProfile.request();
 	}
 
 	public void mouseExited(MouseEvent e) {
@@ -469,6 +456,7 @@ public abstract class CSI_SpectrumData implements MouseListener, MouseMotionList
 		for (int i = 0; i < x.length; i++) {
 			x[i] = m * i + b;
 		}
+		fitCoeffs = null;
 		this.csi_Spectrum_Analyzer.isCalibrating = false;
 		Calibration cal = img.getCalibration();
 		cal.pixelDepth = m;
@@ -489,11 +477,32 @@ public abstract class CSI_SpectrumData implements MouseListener, MouseMotionList
 		pwin.pack();
 	}
 
+	/*
+	 * Reports the progress of the running operation, at most every
+	 * PROGRESS_INTERVAL ms, and stops it here if it has been cancelled.
+	 */
 	void updateProgress(double progress) {
-		if (progress == 1)
-			pwin.setTitle("CSI: Cornell Spectrum Imager - " + img.getTitle());
-		else
-			pwin.setTitle("(Working: %" + String.format("%.0f", progress * 100)
-					+ ") CSI: Cornell Spectrum Imager - " + img.getTitle());
+		CSI_JobQueue.checkCancelled();
+		long now = System.currentTimeMillis();
+		if (progress != 1 && now - lastProgress < CSI_JobQueue.PROGRESS_INTERVAL)
+			return;
+		lastProgress = now;
+		showProgress(progress);
+	}
+
+	/*
+	 * Shows progress (1 when idle) and the number of queued jobs in the
+	 * title of the plot window. Safe to call from any thread.
+	 */
+	void showProgress(double progress) {
+		int queued = CSI_JobQueue.getQueued();
+		final String title = (progress == 1 ? "" : "(Working: %" + String.format("%.0f", progress * 100) + ") ")
+				+ (queued > 0 ? "(" + queued + " queued) " : "") + "CSI: Cornell Spectrum Imager - " + img.getTitle();
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				if (pwin != null)
+					pwin.setTitle(title);
+			}
+		});
 	}
 }
\ No newline at end of file
@@ -22,8 +22,8 @@ public class CSI_SpectrumData0D extends CSI_SpectrumData1D {
 	}
 
 	@Override
-	ImagePlus integrate(int fitStart, int fitEnd, int intStart, int intEnd) {
-		ImagePlus imp = super.integrate(fitStart, fitEnd, intStart, intEnd);
+	ImagePlus integrate(int fitStart, int fitEnd, int intStart, int intEnd, CSI_FitSettings settings) {
+		ImagePlus imp = super.integrate(fitStart, fitEnd, intStart, intEnd, settings);
 		IJ.showMessage(imp.getTitle(), imp.getProcessor().getf(0, 0) + " total " + yLabel);
 		return new ImagePlus();
 	}
@@ -1,5 +1,7 @@
 package com.spectrumimager.CSI;
 
+import java.util.Arrays;
+
 import org.ujmp.core.Matrix;
 import org.ujmp.core.calculation.Calculation;
 import org.ujmp.core.doublematrix.DenseDoubleMatrix2D;
@@ -26,43 +28,35 @@ public class CSI_SpectrumData1D extends CSI_SpectrumData {
 		return img.getWidth();
 	}
 
-	ImagePlus fitToModel(int fitStart, int fitEnd, int intStart, int intEnd) {
-		return integrate(fitStart, fitEnd, intStart, intEnd);
+	ImagePlus fitToModel(int fitStart, int fitEnd, int intStart, int intEnd, CSI_FitSettings settings) {
+		return integrate(fitStart, fitEnd, intStart, intEnd, settings);
 	}
 
 	ImagePlus fitToBosman(int fitStart, int fitEnd, int intStart, int intEnd) {
 		return null;
 	}
 
-	ImagePlus integrate(int fitStart, int fitEnd, int intStart, int intEnd) {
+	ImagePlus integrate(int fitStart, int fitEnd, int intStart, int intEnd, CSI_FitSettings settings) {
+		CSI_FitModel fit = settings.fit;
 		int height = img.getHeight();
 		ImageProcessor ip = img.getProcessor();
 		ImageProcessor ipint = ip.resize(1, height);
-		double pix, c0, c1;
-		ImagePlus imgint = new ImagePlus("Integrated from " + String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[intStart]) + " "
-				+ this.csi_Spectrum_Analyzer.state.xLabel + " to " + String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[intEnd]) + " " + this.csi_Spectrum_Analyzer.state.xLabel
-				+ "of background subtracted via " + this.csi_Spectrum_Analyzer.comFit.getSelectedItem().toString().toLowerCase() + " fit from "
-				+ String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[fitStart]) + " " + this.csi_Spectrum_Analyzer.state.xLabel + " to "
-				+ String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[fitEnd]) + " " + this.csi_Spectrum_Analyzer.state.xLabel + " " + img.getTitle()
+		double pix;
+		ImagePlus imgint = new ImagePlus("Integrated from " + String.format("%.1f", x[intStart]) + " "
+				+ xLabel + " to " + String.format("%.1f", x[intEnd]) + " " + xLabel
+				+ "of background subtracted via " + settings.fitName.toLowerCase() + " fit from "
+				+ String.format("%.1f", x[fitStart]) + " " + xLabel + " to "
+				+ String.format("%.1f", x[fitEnd]) + " " + xLabel + " " + img.getTitle()
 				+ img.getTitle(), ipint);
 
-		Matrix yMat = DenseDoubleMatrix2D.Factory.zeros(size, height);
-		for (int k = 0; k < size; k++) {
-			updateProgress(k * 1.0 / (2 * size));
-			for (int i = 0; i < height; i++) {
-				yMat.setAsDouble(ip.getf(k, i), k, i);
-			}
-		}
-		Matrix coeffs = fit.createFit(x, yMat, fitStart, fitEnd);
+		double[][] coeffs = fitRows(ip, fitStart, fitEnd, fit);
 
 		for (int i = 0; i < height; i++) {
 			updateProgress(i * 1.0 / (2 * size) + .5);
-			c0 = coeffs.getAsDouble(0, i);
-			c1 = coeffs.getAsDouble(1, i);
-			pix = ip.getf(intStart, i) / 2 - fit.getFitAtX(c0, c1, x[intStart]);
-			pix += ip.getf(intEnd, i) / 2 - fit.getFitAtX(c0, c1, x[intEnd]);
+			pix = ip.getf(intStart, i) / 2 - fit.getFitAtX(coeffs, i, x[intStart]);
+			pix += ip.getf(intEnd, i) / 2 - fit.getFitAtX(coeffs, i, x[intEnd]);
 			for (int j = intStart + 1; j < intEnd; j++) {
-				pix += ip.getf(j, i) / 1 - fit.getFitAtX(c0, c1, x[j]);
+				pix += ip.getf(j, i) / 1 - fit.getFitAtX(coeffs, i, x[j]);
 			}
 			ipint.putPixelValue(0, i, pix);
 		}
@@ -83,30 +77,21 @@ public class CSI_SpectrumData1D extends CSI_SpectrumData {
 				img.getTitle() + " HCM integrated from " + String.format("%.1f", x[intStart]) + " " + xLabel
 						+ " to " + String.format("%.1f", x[intEnd]) + " " + xLabel,
 				ipint);
-		double pix, c0, c1, s, f;
+		double pix, s, f;
 
-		Matrix yMat = DenseDoubleMatrix2D.Factory.zeros(size, height);
-		for (int k = 0; k < size; k++) {
-			updateProgress(k * 1.0 / (2 * size));
-			for (int i = 0; i < height; i++) {
-				yMat.setAsDouble(ip.getf(k, i), k, i);
-			}
-		}
-		Matrix coeffs = fit.createFit(x, yMat, fitStart, fitEnd);
+		double[][] coeffs = fitRows(ip, fitStart, fitEnd, fit);
 
 		for (int i = 0; i < height; i++) {
 			updateProgress(i * 1.0 / (2 * size) + .5);
-			c0 = coeffs.getAsDouble(0, i);
-			c1 = coeffs.getAsDouble(1, i);
 			f = ip.getf(intStart, i);
-			s = f - fit.getFitAtX(c0, c1, x[intStart]);
+			s = f - fit.getFitAtX(coeffs, i, x[intStart]);
 			pix = s * s / (2 * f);
 			f = ip.getf(intEnd, i);
-			s = f - fit.getFitAtX(c0, c1, x[intEnd]);
+			s = f - fit.getFitAtX(coeffs, i, x[intEnd]);
 			pix += s * s / (2 * f);
 			for (int j = intStart + 1; j < intEnd; j++) {
 				f = ip.getf(j, i);
-				s = f - fit.getFitAtX(c0, c1, x[j]);
+				s = f - fit.getFitAtX(coeffs, i, x[j]);
 				pix += s * s / f;
 			}
 			ipint.putPixelValue(0, i, pix);
@@ -117,30 +102,21 @@ public class CSI_SpectrumData1D extends CSI_SpectrumData {
 		return imgint;
 	}
 
-	void PCA(int fitStart, int fitEnd, int pcaStart, int pcaEnd) {
+	void PCA(int fitStart, int fitEnd, int pcaStart, int pcaEnd, CSI_FitSettings settings) {
+		CSI_FitModel fit = settings.fit;
 		int height = img.getHeight();
 		ImageProcessor ip = img.getProcessor();
 		ImageStack stackpca;
 		Plot[] stackplot;
-		double c0, c1;
 		double[] pcax = new double[pcaEnd - pcaStart];
 
-		Matrix yMat = DenseDoubleMatrix2D.Factory.zeros(size, height);
-		for (int k = 0; k < size; k++) {
-			updateProgress(k / (size * 4.0));
-			for (int j = 0; j < height; j++) {
-				yMat.setAsDouble(ip.getf(k, j), k, j);
-			}
-		}
-		Matrix coeffs = fit.createFit(x, yMat, fitStart, fitEnd);
+		double[][] coeffs = fitRows(ip, fitStart, fitEnd, fit);
 
-		yMat = DenseDoubleMatrix2D.Factory.zeros(pcaEnd - pcaStart, height);
+		Matrix yMat = DenseDoubleMatrix2D.Factory.zeros(pcaEnd - pcaStart, height);
 		for (int k = pcaStart; k < pcaEnd; k++) {
 			updateProgress((k - pcaStart) / ((pcaEnd - pcaStart) * 4.0) + .25);
 			for (int j = 0; j < height; j++) {
-				c0 = coeffs.getAsDouble(0, j);
-				c1 = coeffs.getAsDouble(1, j);
-				yMat.setAsDouble(ip.getf(k, j) - fit.getFitAtX(c0, c1, x[k]), k - pcaStart, j);
+				yMat.setAsDouble(ip.getf(k, j) - fit.getFitAtX(coeffs, j, x[k]), k - pcaStart, j);
 			}
 		}
 		pwin.setTitle(
@@ -148,7 +124,7 @@ public class CSI_SpectrumData1D extends CSI_SpectrumData {
 						+ img.getTitle());
 
 		Matrix yMatUJMP = yMat;
-		if (this.csi_Spectrum_Analyzer.meanCentering)
+		if (settings.meanCentering)
 			yMatUJMP.center(Calculation.ORIG, Matrix.COLUMN, true);
 		Matrix[] USV = yMatUJMP.svd();
 		// Jama.SingularValueDecomposition pcasvd = yMat.svd();
@@ -199,24 +175,17 @@ public class CSI_SpectrumData1D extends CSI_SpectrumData {
 		PCAw.setup(screewin, spectrum, stackplot, maps, sMax, c);
 	}
 
-	void weightedPCA(int fitStart, int fitEnd, int pcaStart, int pcaEnd) {
+	void weightedPCA(int fitStart, int fitEnd, int pcaStart, int pcaEnd, CSI_FitSettings settings) {
+		CSI_FitModel fit = settings.fit;
 		int height = img.getHeight();
 		ImageProcessor ip = img.getProcessor();
 		ImageStack stackpca;
 		Plot[] stackplot;
-		double c0, c1;
 		double[] pcax = new double[pcaEnd - pcaStart];
 
-		Matrix yMat = DenseDoubleMatrix2D.Factory.zeros(size, height);
-		for (int k = 0; k < size; k++) {
-			updateProgress(k / (size * 4.0));
-			for (int j = 0; j < height; j++) {
-				yMat.setAsDouble(ip.getf(k, j), k, j);
-			}
-		}
-		Matrix coeffs = fit.createFit(x, yMat, fitStart, fitEnd);
+		double[][] coeffs = fitRows(ip, fitStart, fitEnd, fit);
 
-		yMat = DenseDoubleMatrix2D.Factory.zeros(pcaEnd - pcaStart, height);
+		Matrix yMat = DenseDoubleMatrix2D.Factory.zeros(pcaEnd - pcaStart, height);
 		for (int k = pcaStart; k < pcaEnd; k++) {
 			for (int j = 0; j < height; j++) {
 				yMat.setAsDouble(ip.getf(k, j), k - pcaStart, j);
@@ -235,9 +204,7 @@ public class CSI_SpectrumData1D extends CSI_SpectrumData {
 		for (int k = pcaStart; k < pcaEnd; k++) {
 			updateProgress((k - pcaStart) / ((pcaEnd - pcaStart) * 4.0) + .25);
 			for (int j = 0; j < height; j++) {
-				c0 = coeffs.getAsDouble(0, j);
-				c1 = coeffs.getAsDouble(1, j);
-				yMat.setAsDouble(ip.getf(k, j) - fit.getFitAtX(c0, c1, x[k]), k - pcaStart, j);
+				yMat.setAsDouble(ip.getf(k, j) - fit.getFitAtX(coeffs, j, x[k]), k - pcaStart, j);
 			}
 		}
 
@@ -252,7 +219,7 @@ public class CSI_SpectrumData1D extends CSI_SpectrumData {
 				"(Working: %50) [Doing Singular Value Composition: may take a few minutes.]  CSI: Cornell Spectrum Imager - "
 						+ img.getTitle());
 
-		if (this.csi_Spectrum_Analyzer.meanCentering)
+		if (settings.meanCentering)
 			yMatUJMP.center(Calculation.ORIG, Matrix.ROW, true);
 		Matrix[] USV = yMatUJMP.svd();
 		// Jama.SingularValueDecomposition pcasvd = yMat.svd();
@@ -309,32 +276,23 @@ public class CSI_SpectrumData1D extends CSI_SpectrumData {
 		PCAw.setup(screewin, spectrum, stackplot, maps, sMax, c);
 	}
 
-	ImagePlus subtract(int fitStart, int fitEnd) {
+	ImagePlus subtract(int fitStart, int fitEnd, CSI_FitSettings settings) {
+		CSI_FitModel fit = settings.fit;
 		int height = img.getHeight();
 		ImageProcessor ip = img.getProcessor();
 		ImageProcessor ipsub = ip.createProcessor(size, height);
 		ImagePlus imgsub = new ImagePlus(
-				"Background subtracted via " + this.csi_Spectrum_Analyzer.comFit.getSelectedItem().toString().toLowerCase() + " fit from "
-						+ String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[fitStart]) + " " + this.csi_Spectrum_Analyzer.state.xLabel + " to "
-						+ String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[fitEnd]) + " " + this.csi_Spectrum_Analyzer.state.xLabel + " " + img.getTitle(),
+				"Background subtracted via " + settings.fitName.toLowerCase() + " fit from "
+						+ String.format("%.1f", x[fitStart]) + " " + xLabel + " to "
+						+ String.format("%.1f", x[fitEnd]) + " " + xLabel + " " + img.getTitle(),
 				ipsub);
-		double c0, c1;
 
-		Matrix yMat = DenseDoubleMatrix2D.Factory.zeros(size, height);
-		for (int k = 0; k < size; k++) {
-			updateProgress(k * 1.0 / (2 * size));
-			for (int j = 0; j < height; j++) {
-				yMat.setAsDouble(ip.getf(k, j), k, j);
-			}
-		}
-		Matrix coeffs = fit.createFit(x, yMat, fitStart, fitEnd);
+		double[][] coeffs = fitRows(ip, fitStart, fitEnd, fit);
 
 		for (int i = 0; i < height; i++) {
 			updateProgress(i * 1.0 / (2 * size) + .5);
-			c0 = coeffs.getAsDouble(0, i);
-			c1 = coeffs.getAsDouble(1, i);
 			for (int j = fitStart; j < size; j++) {
-				ipsub.putPixelValue(j, i, ip.getf(j, i) / 1 - fit.getFitAtX(c0, c1, x[j]));
+				ipsub.putPixelValue(j, i, ip.getf(j, i) / 1 - fit.getFitAtX(coeffs, i, x[j]));
 			}
 		}
 		updateProgress(1);
@@ -343,6 +301,23 @@ public class CSI_SpectrumData1D extends CSI_SpectrumData {
 		return imgsub;
 	}
 
+	/*
+	 * Fits the background of every row of the linescan over [fitStart, fitEnd)
+	 * with fit.
+	 */
+	double[][] fitRows(ImageProcessor ip, int fitStart, int fitEnd, CSI_FitModel fit) {
+		int height = ip.getHeight();
+		int s = fitEnd - fitStart;
+		float[] spectra = new float[s * height];
+		for (int i = 0; i < height; i++) {
+			updateProgress(i * 1.0 / (2 * height));
+			for (int k = 0; k < s; k++) {
+				spectra[i * s + k] = ip.getf(k + fitStart, i);
+			}
+		}
+		return fit.fit(Arrays.copyOfRange(x, fitStart, fitEnd), spectra, height, null);
+	}
+
 	double[] getProfile() {
 		Roi roi = img.getRoi();
 		if (roi == null)
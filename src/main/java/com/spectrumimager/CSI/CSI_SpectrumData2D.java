@@ -1,9 +1,13 @@
 package com.spectrumimager.CSI;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.ujmp.core.Matrix;
 import org.ujmp.core.calculation.Calculation;
 import org.ujmp.core.doublematrix.DenseDoubleMatrix2D;
-import org.ujmp.core.doublematrix.impl.BlockDenseDoubleMatrix2D;
+import org.ujmp.core.doublematrix.impl.DefaultDenseDoubleMatrix2D;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -13,6 +17,7 @@ import ij.gui.Plot;
 import ij.gui.PlotWindow;
 import ij.gui.Roi;
 import ij.measure.Calibration;
+import ij.plugin.filter.RankFilters;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
@@ -20,6 +25,11 @@ import ij.util.Tools;
 
 // Class for 2D spectrum maps.
 public class CSI_SpectrumData2D extends CSI_SpectrumData {
+	static final double TILE_FRACTION = 0.25;
+
+	CSI_Pyramid pyramid; // Binned copies for previews, built on first use
+	final CSI_LiveMap liveMap = new CSI_LiveMap(this);
+	CSI_PrefixSums prefixSums; // Cumulative energy sums, kept if asked for
 
 	CSI_SpectrumData2D(CSI_Spectrum_Analyzer csi_Spectrum_Analyzer, ImagePlus img) {
 		super(csi_Spectrum_Analyzer, img);
@@ -33,20 +43,9 @@ public class CSI_SpectrumData2D extends CSI_SpectrumData {
 		CSI_ModelFit mf = new CSI_ModelFit();
 		int width = img.getWidth();
 		int height = img.getHeight();
-		ImageStack stack = img.getStack();
-		ImageProcessor ip;
 		ImagePlus bos;
 
-		DenseDoubleMatrix2D yMat = new BlockDenseDoubleMatrix2D(fitEnd - fitStart, width * height);
-		for (int k = fitStart; k < fitEnd; k++) {
-			updateProgress(k * 1.0 / (2 * (fitEnd - fitStart)));
-			ip = stack.getProcessor(k + 1);
-			for (int i = 0; i < height; i++) {
-				for (int j = 0; j < width; j++) {
-					yMat.setDouble(ip.getf(j, i), k - fitStart, width * i + j);
-				}
-			}
-		}
+		DenseDoubleMatrix2D yMat = readMatrix(fitStart, fitEnd, null, null);
 
 		DenseDoubleMatrix2D yMatUJMP = yMat;
 		Matrix[] USV = yMatUJMP.svd();
@@ -84,41 +83,16 @@ public class CSI_SpectrumData2D extends CSI_SpectrumData {
 		return bos;
 	}
 
-	ImagePlus fitToModel(int fitStart, int fitEnd, int intStart, int intEnd) {
+	ImagePlus fitToModel(int fitStart, int fitEnd, int intStart, int intEnd, CSI_FitSettings settings) {
 		CSI_ModelFit mf = new CSI_ModelFit();
 		int width = img.getWidth();
 		int height = img.getHeight();
-		ImageStack stack = img.getStack();
-		double filtersize = 0;
-		try {
-			filtersize = Double.parseDouble(this.csi_Spectrum_Analyzer.txtOversampling.getText());
-		} catch (NumberFormatException nfe) {
-			this.csi_Spectrum_Analyzer.txtOversampling.setText("0.0");
-		}
-		if (filtersize > 0) {
-			img.saveRoi();
-			img.setRoi(0, 0, width, height);
-			ImagePlus imgfilter = img.duplicate();
-			img.restoreRoi();
-			// IJ.run(imgfilter, "Median...", "radius="+filtersize+"1
-			// stack");
-			IJ.run(imgfilter, "Gaussian Blur...", "sigma=" + filtersize * 0.42466 + " stack");
-			stack = imgfilter.getStack();
-		}
-		ImageProcessor ip;
+		double filtersize = settings.oversampling;
 		ImageProcessor ipcoeff1;
 
-		Matrix yMat = DenseDoubleMatrix2D.Factory.zeros(size, width * height);
-		for (int k = 0; k < size; k++) {
-			updateProgress(k * 1.0 / (2 * size));
-			ip = stack.getProcessor(k + 1);
-			for (int i = 0; i < height; i++) {
-				for (int j = 0; j < width; j++) {
-					yMat.setAsDouble(ip.getf(j, i), k, width * i + j);
-				}
-			}
-		}
-		mf.createModelNoG(x, yMat, fitStart, fitEnd, intStart, intEnd, fit);
+		boolean quality = settings.fitQuality;
+		CSI_FitCache.Entry bg = fitBackground(settings, fitStart, fitEnd, quality);
+		mf.setModel(x, bg.coeffs, fitStart, fitEnd, intStart, intEnd, bg.fit);
 
 		// IJ.run("Convolve...", "text1=[-1 -4 -6 -4 -1\n-4 -16 -24 -16
 		// -4\n-5 -20 -30 -20 -5\n0 0 0 0 0\n5 20 30 20 5\n4 16 24 16 4\n1 4
@@ -126,71 +100,184 @@ public class CSI_SpectrumData2D extends CSI_SpectrumData {
 		// IJ.run("Convolve...", "text1=[-1 -4 -5 0 5 4 1\n-4 -6 -20 0 20 16
 		// 4\n-6 -24 -30 0 30 24 6\n-4 -6 -20 0 20 16 4\n-1 -4 -5 0 5 4 1\n]
 		// normalize stack");
-		stack = img.getStack();
-		for (int k = 0; k < size; k++) {
-			updateProgress(k * 1.0 / (2 * size) + .5);
-			ip = stack.getProcessor(k + 1);
-			for (int i = 0; i < height; i++) {
-				for (int j = 0; j < width; j++) {
-					yMat.setAsDouble(ip.getf(j, i), k, width * i + j);
-				}
-			}
+		int n = width * height;
+		int sb = fitEnd - fitStart;
+		int s = sb + intEnd - intStart;
+		int rows = tileRows(s);
+		float[] spectra = new float[s * width * rows];
+		float[] negative = quality ? new float[n] : null;
+		double[][] coeffs = new double[2][n];
+		for (int j0 = 0; j0 < height; j0 += rows) {
+			updateProgress(.5 + j0 * 1.0 / (2 * height));
+			int j1 = Math.min(height, j0 + rows);
+			readTile(width * j0, width * j1, fitStart, fitEnd, spectra, s, 0);
+			readTile(width * j0, width * j1, intStart, intEnd, spectra, s, sb);
+			mf.createFitNoG(spectra, width * j0, width * (j1 - j0), coeffs, negative);
 		}
-		double[][] coeffs;
-		coeffs = mf.createFitNoG(x, yMat, fitStart, fitEnd, intStart, intEnd);
 		updateProgress(1);
+		if (quality)
+			showFitQuality(bg, negative);
 		ipcoeff1 = new FloatProcessor(width, height, coeffs[1]);
 		return new ImagePlus(
-				"Integrated from " + String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[intStart]) + " " + this.csi_Spectrum_Analyzer.state.xLabel + " to "
-						+ String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[intEnd]) + " " + this.csi_Spectrum_Analyzer.state.xLabel + " of "
-						+ String.format("%.1f", filtersize) + " oversampled background subtracted via "
-						+ this.csi_Spectrum_Analyzer.comFit.getSelectedItem().toString().toLowerCase() + " fit from "
-						+ String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[fitStart]) + " " + this.csi_Spectrum_Analyzer.state.xLabel + " to "
-						+ String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[fitEnd]) + " " + this.csi_Spectrum_Analyzer.state.xLabel + " " + img.getTitle(),
+				"Integrated from " + String.format("%.1f", x[intStart]) + " " + xLabel + " to "
+						+ String.format("%.1f", x[intEnd]) + " " + xLabel + " of "
+						+ String.format("%.1f", filtersize)
+						+ (settings.smoothCoefficients ? " smoothed" : " oversampled")
+						+ " background subtracted via "
+						+ settings.fitName.toLowerCase() + " fit from "
+						+ String.format("%.1f", x[fitStart]) + " " + xLabel + " to "
+						+ String.format("%.1f", x[fitEnd]) + " " + xLabel + " " + img.getTitle(),
 				ipcoeff1);
 
 	}
 
-	ImagePlus subtract(int fitStart, int fitEnd) {
+	/*
+	 * Asks for a list of edges to map, starting from the current windows and
+	 * fit. Returns null if the dialog is cancelled or a line cannot be read.
+	 */
+	CSI_Edge[] askEdges() {
+		CSI_Edge current = new CSI_Edge(X0, X1, iX0, iX1, fit);
+		GenericDialog gd = new GenericDialog("Map several edges");
+		gd.addMessage("One edge per line: background start, background end, integration start and\n"
+				+ "integration end (" + xLabel + "), then the fit, one of:\n" + getFitNames());
+		gd.addTextAreas(current.format(x), null, 8, 60);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return null;
+		List<CSI_Edge> edges = new ArrayList<CSI_Edge>();
+		for (String line : gd.getNextText().split("\n")) {
+			if (line.trim().length() == 0)
+				continue;
+			try {
+				edges.add(CSI_Edge.parse(line, x));
+			} catch (IllegalArgumentException e) {
+				IJ.error("Map several edges", e.getMessage());
+				return null;
+			}
+		}
+		if (edges.isEmpty())
+			return null;
+		return edges.toArray(new CSI_Edge[edges.size()]);
+	}
+
+	private static String getFitNames() {
+		StringBuilder names = new StringBuilder();
+		for (CSI_FitModel model : CSI_FitModels.getModels()) {
+			if (names.length() > 0)
+				names.append(", ");
+			names.append(model.getName());
+		}
+		return names.toString();
+	}
+
+	/*
+	 * Integrates every edge as fitToModel does, with one slice per edge in
+	 * the result. The stack is read once, a tile of pixel rows at a time
+	 * over all the windows together, and each edge is fit and integrated
+	 * from the tile. Oversampled fits are made on a blurred copy of the tile,
+	 * while the scale of each edge is solved on the raw counts; smoothing the
+	 * coefficient maps would need every fit before the first integral, so in
+	 * Smoothed mode the plain fits are used. LCPL takes the exponents of the
+	 * whole image, as fitBackground() does, from a first pass over the tiles.
+	 */
+	ImagePlus mapEdges(CSI_Edge[] edges, CSI_FitSettings settings) {
 		int width = img.getWidth();
 		int height = img.getHeight();
-		ImageStack stack = img.getStack();
-		double filtersize = 0;
-		try {
-			filtersize = Double.parseDouble(this.csi_Spectrum_Analyzer.txtOversampling.getText());
-		} catch (NumberFormatException nfe) {
-			this.csi_Spectrum_Analyzer.txtOversampling.setText("0.0");
-		}
-		if (filtersize > 0) {
-			img.saveRoi();
-			img.setRoi(0, 0, width, height);
-			ImagePlus imgfilter = img.duplicate();
-			img.restoreRoi();
-			// IJ.run(imgfilter, "Median...", "radius="+filtersize+"
-			// stack");
-			IJ.run(imgfilter, "Gaussian Blur...", "radius=" + filtersize * 0.42466 + " stack");
-			stack = imgfilter.getStack();
-		}
-		ImageStack stacksub = new ImageStack(width, height);
-		ImageStack stackresidual = new ImageStack(width, height);
-		ImageProcessor ipsub;
-		ImageProcessor ip;
-		ImageProcessor ipresidual = new FloatProcessor(1, 1);
-		ImagePlus imgsub;
-		double pix;
-
-		Matrix yMat = DenseDoubleMatrix2D.Factory.zeros(size, width * height);
-		for (int k = 0; k < size; k++) {
-			updateProgress(k * 1.0 / (2 * size));
-			ip = stack.getProcessor(k + 1);
-			for (int i = 0; i < width; i++) {
-				for (int j = 0; j < height; j++) {
-					yMat.setAsDouble(ip.getf(i, j), k, height * i + j);
+		int n = width * height;
+		int lo = size, hi = 0, sMax = 0;
+		for (CSI_Edge edge : edges) {
+			lo = Math.min(lo, Math.min(edge.fitStart, edge.intStart));
+			hi = Math.max(hi, Math.max(edge.fitEnd, edge.intEnd));
+			sMax = Math.max(sMax, edge.fitEnd - edge.fitStart + edge.intEnd - edge.intStart);
+		}
+		int c = hi - lo;
+		double fwhm = settings.smoothCoefficients ? 0 : settings.oversampling;
+		CSI_GaussianFilter filter = fwhm > 0 ? new CSI_GaussianFilter(fwhm * CSI_GaussianFilter.FWHM_TO_SIGMA) : null;
+		// The tile and its blurred copy, then per edge its background window
+		// alone and followed by its integration window
+		int rows = tileRows((filter != null ? 2 * c : c) + 2 * sMax);
+		float[] tile = new float[c * width * rows];
+		float[] blurred = filter != null ? new float[c * width * rows] : tile;
+		float[] background = new float[sMax * width * rows];
+		float[] spectra = new float[sMax * width * rows];
+		float[][] maps = new float[edges.length][n];
+
+		// The LCPL exponents, from the power law fits of every pixel
+		double[][] exponents = new double[edges.length][];
+		double[][] slopes = new double[edges.length][];
+		boolean lcpl = false;
+		for (int e = 0; e < edges.length; e++) {
+			if (edges[e].fit instanceof CSI_LCPLFit) {
+				slopes[e] = new double[n];
+				lcpl = true;
+			}
+		}
+		for (int pass = lcpl ? 0 : 1; pass < 2; pass++) {
+			boolean first = pass == 0;
+			for (int j0 = 0; j0 < height; j0 += rows) {
+				updateProgress(first ? j0 * .5 / height : .5 + j0 * .5 / height);
+				int j1 = Math.min(height, j0 + rows);
+				int count = width * (j1 - j0);
+				if (!first || filter == null)
+					readTile(width * j0, width * j1, lo, hi, tile, c, 0);
+				if (filter != null)
+					filter.filter(img.getStack(), j0, j1, lo, hi, blurred, c, 0);
+				for (int e = 0; e < edges.length; e++) {
+					CSI_Edge edge = edges[e];
+					if (first && slopes[e] == null)
+						continue;
+					int sb = edge.fitEnd - edge.fitStart;
+					int s = sb + edge.intEnd - edge.intStart;
+					double[] xWindow = Arrays.copyOfRange(x, edge.fitStart, edge.fitEnd);
+					for (int p = 0; p < count; p++)
+						System.arraycopy(blurred, p * c + edge.fitStart - lo, background, p * sb, sb);
+					if (first) {
+						double[] r = new CSI_PowerFit().fit(xWindow, background, count, null)[1];
+						System.arraycopy(r, 0, slopes[e], width * j0, count);
+						continue;
+					}
+					for (int p = 0; p < count; p++) {
+						System.arraycopy(tile, p * c + edge.fitStart - lo, spectra, p * s, sb);
+						System.arraycopy(tile, p * c + edge.intStart - lo, spectra, p * s + sb, s - sb);
+					}
+					double[][] coeffs = exponents[e] != null
+							? ((CSI_LCPLFit) edge.fit).fit(xWindow, background, count, null, exponents[e])
+							: edge.fit.fit(xWindow, background, count, null);
+					double[][] bAndE = new double[2][count];
+					CSI_ModelFit mf = new CSI_ModelFit();
+					mf.setModel(x, coeffs, edge.fitStart, edge.fitEnd, edge.intStart, edge.intEnd, edge.fit);
+					mf.createFitNoG(spectra, 0, count, bAndE, null);
+					for (int p = 0; p < count; p++)
+						maps[e][width * j0 + p] = (float) bAndE[1][p];
+				}
+			}
+			if (first) {
+				for (int e = 0; e < edges.length; e++) {
+					if (slopes[e] != null)
+						exponents[e] = CSI_LCPLFit.exponents(slopes[e]);
+					slopes[e] = null;
 				}
 			}
 		}
-		Matrix coeffs = fit.createFit(x, yMat, fitStart, fitEnd);
-		stack = img.getStack();
+
+		ImageStack stack = new ImageStack(width, height);
+		for (int e = 0; e < edges.length; e++)
+			stack.addSlice(edges[e].format(x) + " fit", new FloatProcessor(width, height, maps[e]));
+		ImagePlus imp = new ImagePlus("Edge maps of " + img.getTitle(), stack);
+		imp.setCalibration(img.getCalibration());
+		imp.getCalibration().zOrigin = 0;
+		imp.getCalibration().pixelDepth = 1;
+		imp.getCalibration().setZUnit("pixel");
+		updateProgress(1);
+		return imp;
+	}
+
+	ImagePlus subtract(int fitStart, int fitEnd, CSI_FitSettings settings) {
+		ImageStack stack = img.getStack();
+		ImagePlus imgsub;
+
+		CSI_FitCache.Entry bg = fitBackground(settings, fitStart, fitEnd, false);
+		updateProgress(.5);
 
 		// ipcoeff0 = new FloatProcessor(height, width,
 		// coeffs.getArray()[0]);
@@ -199,44 +286,22 @@ public class CSI_SpectrumData2D extends CSI_SpectrumData {
 		// coeffs.getArray()[1]);
 		// (new ImagePlus("coeff1",ipcoeff1 )).show();
 
-		for (int k = 0; k < size; k++) 
-		{
-			updateProgress(k * 1.0 / (2 * size) + .5);
-			if (k < fitStart) 
-			{
-				stacksub.addSlice(stack.getSliceLabel(k + 1),
-						stack.getProcessor(k + 1).createProcessor(width, height));
-			} else {
-				ipsub = stack.getProcessor(k + 1).duplicate();
-				stacksub.addSlice(stack.getSliceLabel(k + 1), ipsub);
-				if (k > fitStart && k < fitEnd) 
-				{
-					ipresidual = stack.getProcessor(k + 1).duplicate();
-					stackresidual.addSlice(stack.getSliceLabel(k + 1), ipresidual);
-				}
-				for (int i = 0; i < width; i++) 
-				{
-					for (int j = 0; j < height; j++) 
-					{
-						pix = ipsub.getPixelValue(i, j)
-								- fit.getFitAtX(coeffs.getAsDouble(0, height * i + j), coeffs.getAsDouble(1, height * i + j), x[k]);
-						ipsub.putPixelValue(i, j, pix);
-						if (k > fitStart && k < fitEnd)
-						{
-							ipresidual.putPixelValue(i, j,
-									Math.exp(fit.Residual.getAsDouble(k - fitStart, height * i + j)));
-						}
-					}
-				}
-			}
+		CSI_Subtractor subtractor = new CSI_Subtractor(stack, x, bg.fit, bg.coeffs);
+		ImageStack stacksub = subtractor.subtract(fitStart);
+		if (settings.fitResidual) {
+			ImagePlus imgres = new ImagePlus("Background fit residual of " + img.getTitle(),
+					subtractor.residual(fitStart, fitEnd));
+			imgres.setCalibration(img.getCalibration());
+			imgres.getCalibration().zOrigin -= fitStart;
+			imgres.resetDisplayRange();
+			imgres.show();
 		}
-		// (new ImagePlus("Residual", stackresidual)).show();
 
 		updateProgress(1);
 		imgsub = new ImagePlus(
-				"Background subtracted via " + this.csi_Spectrum_Analyzer.comFit.getSelectedItem().toString().toLowerCase() + " fit from "
-						+ String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[fitStart]) + " " + this.csi_Spectrum_Analyzer.state.xLabel + " to "
-						+ String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[fitEnd]) + " " + this.csi_Spectrum_Analyzer.state.xLabel + " " + img.getTitle(),
+				"Background subtracted via " + settings.fitName.toLowerCase() + " fit from "
+						+ String.format("%.1f", x[fitStart]) + " " + xLabel + " to "
+						+ String.format("%.1f", x[fitEnd]) + " " + xLabel + " " + img.getTitle(),
 				stacksub);
 		imgsub.setCalibration(img.getCalibration());
 		imgsub.resetDisplayRange();
@@ -244,7 +309,7 @@ public class CSI_SpectrumData2D extends CSI_SpectrumData {
 		return imgsub;
 	}
 
-	ImagePlus integrate(int fitStart, int fitEnd, int intStart, int intEnd) {
+	ImagePlus integrate(int fitStart, int fitEnd, int intStart, int intEnd, CSI_FitSettings settings) {
 		int width = img.getWidth();
 		int height = img.getHeight();
 		ImageStack stack = img.getStack();
@@ -252,93 +317,240 @@ public class CSI_SpectrumData2D extends CSI_SpectrumData {
 		// stack = fitToBosman(fitStart, fitEnd, intStart,
 		// intEnd).getStack();
 		// }
-		ImageProcessor ip;
 		ImageProcessor ipint = stack.getProcessor(1).createProcessor(width, height);
 		ImagePlus imgint = new ImagePlus(
-				"Integrated from " + String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[intStart]) + " " + this.csi_Spectrum_Analyzer.state.xLabel + " to "
-						+ String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[intEnd]) + " " + this.csi_Spectrum_Analyzer.state.xLabel
-						+ " of background subtracted via " + this.csi_Spectrum_Analyzer.comFit.getSelectedItem().toString().toLowerCase()
-						+ " fit from " + String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[fitStart]) + " " + this.csi_Spectrum_Analyzer.state.xLabel + " to "
-						+ String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[fitEnd]) + " " + this.csi_Spectrum_Analyzer.state.xLabel + " " + img.getTitle(),
+				"Integrated from " + String.format("%.1f", x[intStart]) + " " + xLabel + " to "
+						+ String.format("%.1f", x[intEnd]) + " " + xLabel
+						+ " of background subtracted via " + settings.fitName.toLowerCase()
+						+ " fit from " + String.format("%.1f", x[fitStart]) + " " + xLabel + " to "
+						+ String.format("%.1f", x[fitEnd]) + " " + xLabel + " " + img.getTitle(),
 				ipint);
-		double pix, c0, c1;
-
-		Matrix yMat = DenseDoubleMatrix2D.Factory.zeros(size, width * height);
-		for (int k = 0; k < size; k++) {
-			updateProgress(k * 1.0 / (2 * size));
-			ip = stack.getProcessor(k + 1);
-			for (int i = 0; i < width; i++) {
-				for (int j = 0; j < height; j++) {
-					yMat.setAsDouble(ip.getf(i, j), k, height * i + j);
-				}
-			}
-		}
-		Matrix coeffs = fit.createFit(x, yMat, fitStart, fitEnd);
-		stack = img.getStack();
-
-		for (int i = 0; i < width; i++) {
-			updateProgress(.5 + i * 1.0 / (2 * width));
-			for (int j = 0; j < height; j++) {
-				c0 = coeffs.getAsDouble(0, height * i + j);
-				c1 = coeffs.getAsDouble(1, height * i + j);
-				pix = stack.getProcessor(intStart + 1).getf(i, j);
-				pix -= fit.getFitAtX(c0, c1, x[intStart]);
-				pix += stack.getProcessor(intEnd + 1).getf(i, j);
-				pix -= fit.getFitAtX(c0, c1, x[intEnd]);
-				for (int k = intStart + 1; k < intEnd - 1; k++) {
-					pix += stack.getProcessor(k + 1).getf(i, j);
-					pix -= fit.getFitAtX(c0, c1, x[k]);
-				}
-				ipint.putPixelValue(i, j, pix);
-			}
+		int c = intEnd - intStart + 1;
+		double[] weights = new double[c];
+		boolean quality = settings.fitQuality;
+		float[] negative = quality ? new float[width * height] : null;
+
+		CSI_FitCache.Entry bg = fitBackground(settings.fit, fitStart, fitEnd, 0, quality);
+		updateProgress(.5);
+
+		// Both ends of the window plus the channels from intStart + 1 to
+		// intEnd - 2, the sum integrate has always taken
+		weights[0]++;
+		weights[c - 1]++;
+		for (int k = intStart + 1; k < intEnd - 1; k++)
+			weights[k - intStart]++;
+		// The prefix sums cannot tell which channels went negative
+		CSI_PrefixSums cumulative = quality ? null : getPrefixSums();
+		float[] sums = cumulative != null ? sumWindows(cumulative, weights, intStart, bg.fit, bg.coeffs) : null;
+		if (sums == null)
+			sums = new CSI_Integrator(stack, x, weights, intStart, bg.fit, bg.coeffs, negative).integrate();
+		if (ipint instanceof FloatProcessor) {
+			ipint.setPixels(sums);
+		} else {
+			for (int p = 0; p < sums.length; p++)
+				ipint.putPixelValue(p % width, p / width, sums[p]);
 		}
+		if (quality)
+			showFitQuality(bg, negative);
 		imgint.setCalibration(img.getCalibration());
 		imgint.resetDisplayRange();
 		updateProgress(1);
 		return imgint;
 	}
 
+	/*
+	 * The cumulative energy sums of the dataset if they are kept, built on
+	 * first use, or null.
+	 */
+	synchronized CSI_PrefixSums getPrefixSums() {
+		if (!this.csi_Spectrum_Analyzer.energySums) {
+			releasePrefixSums();
+			return null;
+		}
+		if (prefixSums == null || !prefixSums.isValid()) {
+			releasePrefixSums();
+			prefixSums = CSI_PrefixSums.build(img);
+		}
+		return prefixSums;
+	}
+
+	synchronized void releasePrefixSums() {
+		if (prefixSums != null)
+			prefixSums.release();
+		prefixSums = null;
+	}
+
+	/*
+	 * Background subtracted sums, as CSI_Integrator gives, from the
+	 * cumulative sums. Channels of equal weight are summed as one run: the
+	 * counts are two reads per pixel and the background is the fit's closed
+	 * form sum where it has one, else summed channel by channel from the
+	 * coefficients. Returns null if the sums were released meanwhile.
+	 */
+	float[] sumWindows(final CSI_PrefixSums cumulative, double[] weights, int start, final CSI_FitModel fit,
+			final double[][] coeffs) {
+		final List<int[]> runs = new ArrayList<int[]>();
+		for (int k = 0; k < weights.length;) {
+			int end = k + 1;
+			while (end < weights.length && weights[end] == weights[k])
+				end++;
+			if (weights[k] != 0)
+				runs.add(new int[] { start + k, start + end });
+			k = end;
+		}
+		// The planes are taken first so that a release cannot drop them midway
+		double[][] planes = new double[2 * runs.size()][];
+		for (int r = 0; r < runs.size(); r++) {
+			planes[2 * r] = cumulative.getPlane(runs.get(r)[0]);
+			planes[2 * r + 1] = cumulative.getPlane(runs.get(r)[1]);
+			if (planes[2 * r] == null || planes[2 * r + 1] == null)
+				return null;
+		}
+		final int n = img.getWidth() * img.getHeight();
+		final double[] acc = new double[n];
+		final CSI_Fit lsq = fit instanceof CSI_Fit ? (CSI_Fit) fit : null;
+		for (int r = 0; r < runs.size(); r++) {
+			final int from = runs.get(r)[0], to = runs.get(r)[1];
+			final double w = weights[from - start];
+			final double[] lo = planes[2 * r], hi = planes[2 * r + 1];
+			final CSI_Fit.FitSum closed = lsq != null ? lsq.getFitSum(x, from, to) : null;
+			final double[] basis = new double[to - from];
+			if (lsq != null) {
+				for (int k = from; k < to; k++)
+					basis[k - from] = lsq.fx(x[k]);
+			}
+			CSI_FitExecutor.forEachChunk(n, new CSI_FitExecutor.Chunk() {
+				public void run(int first, int last) {
+					double background;
+					for (int p = first; p < last; p++) {
+						if (closed != null) {
+							background = closed.sum(coeffs[0][p], coeffs[1][p]);
+						} else {
+							background = 0;
+							for (int k = from; k < to; k++)
+								background += lsq != null ? lsq.getFitAtFx(coeffs[0][p], coeffs[1][p], basis[k - from])
+										: fit.getFitAtX(coeffs, p, x[k]);
+						}
+						acc[p] += w * (hi[p] - lo[p] - background);
+					}
+				}
+			});
+		}
+		float[] sums = new float[n];
+		for (int p = 0; p < n; p++)
+			sums[p] = (float) acc[p];
+		return sums;
+	}
+
+	/*
+	 * Asks for the windows of an energy sweep, in calibrated units, and
+	 * returns them in channels as { from, to, width, step }, or null.
+	 */
+	int[] askSweep() {
+		double dx = x.length > 1 ? x[1] - x[0] : 1;
+		GenericDialog gd = new GenericDialog("Sweep the integration window");
+		gd.addMessage("Maps of a window of the given width moved in steps from the start to the end,\n"
+				+ "background subtracted with the current fit and background window.");
+		gd.addNumericField("Start", x[iX0], 1, 8, xLabel);
+		gd.addNumericField("End", x[size - 1], 1, 8, xLabel);
+		gd.addNumericField("Width", x[iX1] - x[iX0], 1, 8, xLabel);
+		gd.addNumericField("Step", x[iX1] - x[iX0], 1, 8, xLabel);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return null;
+		int from = CSI_Edge.channel(gd.getNextNumber(), x);
+		int to = CSI_Edge.channel(gd.getNextNumber(), x) + 1;
+		int width = (int) Math.round(gd.getNextNumber() / dx);
+		int step = (int) Math.round(gd.getNextNumber() / dx);
+		if (width < 1 || step < 1 || from + width > to) {
+			IJ.error("Sweep the integration window", "The window must be at least a channel wide, step at least\n"
+					+ "a channel, and fit between the start and the end.");
+			return null;
+		}
+		return new int[] { from, to, width, step };
+	}
+
+	/*
+	 * Background subtracted maps of the windows [s, s + width) for s from
+	 * from on in steps of step while the window ends by to, one slice each.
+	 * With the cumulative energy sums each map takes a few reads per pixel
+	 * whatever its width; without them each is integrated from the stack.
+	 */
+	ImagePlus sweep(int fitStart, int fitEnd, int from, int to, int width, int step, CSI_FitSettings settings) {
+		int w = img.getWidth();
+		int h = img.getHeight();
+		int count = (to - width - from) / step + 1;
+		double dx = x.length > 1 ? x[1] - x[0] : 1;
+		CSI_FitCache.Entry bg = fitBackground(settings.fit, fitStart, fitEnd, 0, false);
+		updateProgress(.25);
+		CSI_PrefixSums cumulative = getPrefixSums();
+		updateProgress(.5);
+
+		double[] weights = new double[width];
+		Arrays.fill(weights, 1);
+		ImageStack maps = new ImageStack(w, h);
+		for (int m = 0; m < count; m++) {
+			int s = from + m * step;
+			float[] sums = cumulative != null ? sumWindows(cumulative, weights, s, bg.fit, bg.coeffs) : null;
+			if (sums == null)
+				sums = new CSI_Integrator(img.getStack(), x, weights, s, bg.fit, bg.coeffs, null).integrate();
+			maps.addSlice(String.format("%.1f-%.1f %s", x[s], x[s + width - 1], xLabel), new FloatProcessor(w, h, sums));
+			updateProgress(.5 + (m + 1) * 0.5 / count);
+		}
+		ImagePlus imgsweep = new ImagePlus("Sweep of " + String.format("%.1f", width * dx) + " " + xLabel + " wide windows from "
+				+ String.format("%.1f", x[from]) + " to " + String.format("%.1f", x[to - 1]) + " " + xLabel
+				+ " background subtracted via " + bg.fit.getName().toLowerCase() + " fit from "
+				+ String.format("%.1f", x[fitStart]) + " to " + String.format("%.1f", x[fitEnd]) + " " + xLabel + " "
+				+ img.getTitle(), maps);
+		Calibration cal = img.getCalibration().copy();
+		cal.pixelDepth = step * dx;
+		cal.zOrigin = -(x[from] + x[from + width - 1]) / (2 * cal.pixelDepth);
+		imgsweep.setCalibration(cal);
+		imgsweep.resetDisplayRange();
+		updateProgress(1);
+		return imgsweep;
+	}
+
 	ImagePlus HCMintegrate(int fitStart, int fitEnd, int intStart, int intEnd) {
 		int width = img.getWidth();
 		int height = img.getHeight();
 		ImageStack stack = img.getStack();
-		ImageProcessor ip;
 		ImageProcessor ipint = stack.getProcessor(1).duplicate();
 		ImagePlus imgint = new ImagePlus(
-				img.getTitle() + " HCM integrated from " + String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[intStart]) + " "
-						+ this.csi_Spectrum_Analyzer.state.xLabel + " to " + String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[intEnd]) + " " + this.csi_Spectrum_Analyzer.state.xLabel,
+				img.getTitle() + " HCM integrated from " + String.format("%.1f", x[intStart]) + " "
+						+ xLabel + " to " + String.format("%.1f", x[intEnd]) + " " + xLabel,
 				ipint);
-		double pix, c0, c1, s, f;
-
-		Matrix yMat = DenseDoubleMatrix2D.Factory.zeros(size, width * height);
-		for (int k = 0; k < size; k++) {
-			updateProgress(k * 1.0 / (2 * size));
-			ip = stack.getProcessor(k + 1);
-			for (int i = 0; i < width; i++) {
-				for (int j = 0; j < height; j++) {
-					yMat.setAsDouble(ip.getf(i, j), k, height * i + j);
-				}
-			}
-		}
-		Matrix coeffs = fit.createFit(x, yMat, fitStart, fitEnd);
-
-		for (int i = 0; i < width; i++) {
-			updateProgress(.5 + i * 1.0 / (2 * width));
-			for (int j = 0; j < height; j++) {
-				c0 = coeffs.getAsDouble(0, height * i + j);
-				c1 = coeffs.getAsDouble(1, height * i + j);
-				f = stack.getProcessor(intStart + 1).getf(i, j);
-				s = f - fit.getFitAtX(c0, c1, x[intStart]);
-				pix = s * s / (2 * f);
-				f = stack.getProcessor(intEnd + 1).getf(i, j);
-				s = f - fit.getFitAtX(c0, c1, x[intEnd]);
-				pix += s * s / (2 * f);
-				for (int k = intStart + 1; k < intEnd - 1; k++) {
-					f = stack.getProcessor(k + 1).getf(i, j);
-					s = f - fit.getFitAtX(c0, c1, x[k]);
-					pix += s * s / f;
+		double pix, s, f;
+		int p, o;
+		int c = intEnd - intStart + 1;
+		int rows = tileRows(c);
+		float[] tile = new float[c * width * rows];
+
+		CSI_FitCache.Entry bg = fitBackground(fit, fitStart, fitEnd, 0, false);
+		double[][] coeffs = bg.coeffs;
+		CSI_FitModel fit = bg.fit;
+
+		for (int j0 = 0; j0 < height; j0 += rows) {
+			int j1 = Math.min(height, j0 + rows);
+			readTile(width * j0, width * j1, intStart, intEnd + 1, tile, c, 0);
+			for (int j = j0; j < j1; j++) {
+				updateProgress(.5 + j * 1.0 / (2 * height));
+				for (int i = 0; i < width; i++) {
+					p = width * j + i;
+					o = (p - width * j0) * c - intStart;
+					f = tile[o + intStart];
+					s = f - fit.getFitAtX(coeffs, p, x[intStart]);
+					pix = s * s / (2 * f);
+					f = tile[o + intEnd];
+					s = f - fit.getFitAtX(coeffs, p, x[intEnd]);
+					pix += s * s / (2 * f);
+					for (int k = intStart + 1; k < intEnd - 1; k++) {
+						f = tile[o + k];
+						s = f - fit.getFitAtX(coeffs, p, x[k]);
+						pix += s * s / f;
+					}
+					ipint.putPixelValue(i, j, pix);
 				}
-				ipint.putPixelValue(i, j, pix);
 			}
 		}
 		imgint.setCalibration(img.getCalibration());
@@ -347,65 +559,26 @@ public class CSI_SpectrumData2D extends CSI_SpectrumData {
 		return imgint;
 	}
 
-	void PCA(int fitStart, int fitEnd, int pcaStart, int pcaEnd) {
+	void PCA(int fitStart, int fitEnd, int pcaStart, int pcaEnd, CSI_FitSettings settings) {
 		int width = img.getWidth();
 		int height = img.getHeight();
-		ImageStack stack = img.getStack();
 
-		double filtersize = 0;
-		try {
-			filtersize = Double.parseDouble(this.csi_Spectrum_Analyzer.txtOversampling.getText());
-		} catch (NumberFormatException nfe) {
-			this.csi_Spectrum_Analyzer.txtOversampling.setText("0.0");
-		}
-		if (filtersize > 0) {
-			img.saveRoi();
-			img.setRoi(0, 0, width, height);
-			ImagePlus imgfilter = img.duplicate();
-			img.restoreRoi();
-			// IJ.run(imgfilter, "Median...", "radius="+filtersize+"
-			// stack");
-			IJ.run(imgfilter, "Gaussian Blur...", "radius=" + filtersize * 0.42466 + " stack");
-			stack = imgfilter.getStack();
-		}
-
-		ImageProcessor ip;
 		ImageStack stackpca;
 		Plot[] stackplot;
-		double c0, c1;
 		double[] pcax = new double[pcaEnd - pcaStart];
 
-		Matrix yMat = DenseDoubleMatrix2D.Factory.zeros(size, width * height);
-		for (int k = 0; k < size; k++) {
-			updateProgress(k / (size * 4.0));
-			ip = stack.getProcessor(k + 1);
-			for (int j = 0; j < height; j++) {
-				for (int i = 0; i < width; i++) {
-					yMat.setAsDouble(ip.getf(i, j), k, width * j + i);
-				}
-			}
-		}
-		Matrix coeffs = fit.createFit(x, yMat, fitStart, fitEnd);
+		CSI_FitCache.Entry bg = fitBackground(settings, fitStart, fitEnd, false);
+		double[][] coeffs = bg.coeffs;
+		CSI_FitModel fit = bg.fit;
 
-		stack = img.getStack();
-		yMat = DenseDoubleMatrix2D.Factory.zeros(pcaEnd - pcaStart, width * height);
-		for (int k = pcaStart; k < pcaEnd; k++) {
-			updateProgress((k - pcaStart) / ((pcaEnd - pcaStart) * 4.0) + .25);
-			ip = stack.getProcessor(k + 1);
-			for (int j = 0; j < height; j++) {
-				for (int i = 0; i < width; i++) {
-					c0 = coeffs.getAsDouble(0, width * j + i);
-					c1 = coeffs.getAsDouble(1, width * j + i);
-					yMat.setAsDouble(ip.getf(i, j) - fit.getFitAtX(c0, c1, x[k]), k - pcaStart, width * j + i);
-				}
-			}
-		}
+		Matrix yMat = readMatrix(pcaStart, pcaEnd, fit, coeffs);
+		updateProgress(.5);
 		pwin.setTitle(
 				"(Working: %50) [Doing Singular Value Composition: may take a few minutes.]  CSI: Cornell Spectrum Imager - "
 						+ img.getTitle());
 		
 		Matrix yMatUJMP = yMat;
-		if (this.csi_Spectrum_Analyzer.meanCentering)
+		if (settings.meanCentering)
 			yMatUJMP.center(Calculation.ORIG, Matrix.ROW, true);
 		Matrix[] USV = yMatUJMP.svd();
 		Matrix S = USV[1];
@@ -476,37 +649,18 @@ public class CSI_SpectrumData2D extends CSI_SpectrumData {
 		PCAw.setup(screewin, spectrum, stackplot, maps, sMax, c);
 	}
 
-	void weightedPCA(int fitStart, int fitEnd, int pcaStart, int pcaEnd) {
+	void weightedPCA(int fitStart, int fitEnd, int pcaStart, int pcaEnd, CSI_FitSettings settings) {
 		int width = img.getWidth();
 		int height = img.getHeight();
-		ImageStack stack = img.getStack();
-		ImageProcessor ip;
 		ImageStack stackpca;
 		Plot[] stackplot;
-		double c0, c1;
 		double[] pcax = new double[pcaEnd - pcaStart];
 
-		Matrix yMat = DenseDoubleMatrix2D.Factory.zeros(size, width * height);
-		for (int k = 0; k < size; k++) {
-			updateProgress(k / (size * 4.0));
-			ip = stack.getProcessor(k + 1);
-			for (int j = 0; j < height; j++) {
-				for (int i = 0; i < width; i++) {
-					yMat.setAsDouble(ip.getf(i, j), k, width * j + i);
-				}
-			}
-		}
-		Matrix coeffs = fit.createFit(x, yMat, fitStart, fitEnd);
+		CSI_FitCache.Entry bg = fitBackground(settings.fit, fitStart, fitEnd, 0, false);
+		double[][] coeffs = bg.coeffs;
+		CSI_FitModel fit = bg.fit;
 
-		yMat = DenseDoubleMatrix2D.Factory.zeros(pcaEnd - pcaStart, width * height);
-		for (int k = pcaStart; k < pcaEnd; k++) {
-			ip = stack.getProcessor(k + 1);
-			for (int j = 0; j < height; j++) {
-				for (int i = 0; i < width; i++) {
-					yMat.setAsDouble(ip.getf(i, j), k - pcaStart, width * j + i);
-				}
-			}
-		}
+		Matrix yMat = readMatrix(pcaStart, pcaEnd, null, null);
 		Matrix yMatUJMP = yMat;
 
 		Matrix g = yMatUJMP.sum(Calculation.NEW, Matrix.COLUMN, true).divide(yMatUJMP.getColumnCount() * 1.0)
@@ -516,18 +670,8 @@ public class CSI_SpectrumData2D extends CSI_SpectrumData {
 		g = g.divide(g.getValueSum());
 		h = h.divide(h.getValueSum());
 
-		yMat = DenseDoubleMatrix2D.Factory.zeros(pcaEnd - pcaStart, width * height);
-		for (int k = pcaStart; k < pcaEnd; k++) {
-			updateProgress((k - pcaStart) / ((pcaEnd - pcaStart) * 4.0) + .25);
-			ip = stack.getProcessor(k + 1);
-			for (int j = 0; j < height; j++) {
-				for (int i = 0; i < width; i++) {
-					c0 = coeffs.getAsDouble(0, width * j + i);
-					c1 = coeffs.getAsDouble(1, width * j + i);
-					yMat.setAsDouble(ip.getf(i, j) - fit.getFitAtX(c0, c1, x[k]), k - pcaStart, width * j + i);
-				}
-			}
-		}
+		yMat = readMatrix(pcaStart, pcaEnd, fit, coeffs);
+		updateProgress(.5);
 
 		yMatUJMP = yMat;
 
@@ -539,7 +683,7 @@ public class CSI_SpectrumData2D extends CSI_SpectrumData {
 		pwin.setTitle(
 				"(Working: %50) [Doing Singular Value Composition: may take a few minutes.]  CSI: Cornell Spectrum Imager - "
 						+ img.getTitle());
-		if (this.csi_Spectrum_Analyzer.meanCentering)
+		if (settings.meanCentering)
 			yMatUJMP.center(Calculation.ORIG, Matrix.ROW, true);
 		Matrix[] USV = yMatUJMP.svd();
 		pwin.setTitle("(Working: %50) CSI: Cornell Spectrum Imager - " + img.getTitle());
@@ -596,14 +740,225 @@ public class CSI_SpectrumData2D extends CSI_SpectrumData {
 		PCAw.setup(screewin, spectrum, stackplot, maps, sMax, c);
 	}
 
+	/*
+	 * Background of every pixel over [fitStart, fitEnd) as set in settings:
+	 * a plain fit (Fast), a fit of the blurred data (Oversampled)
+	 * or a plain fit whose coefficient maps are then smoothed (Smoothed).
+	 * Smoothing only filters the coefficient maps, not every channel, so it
+	 * is much cheaper than oversampling; its result is not cached, the fit
+	 * it starts from is.
+	 */
+	CSI_FitCache.Entry fitBackground(CSI_FitSettings settings, int fitStart, int fitEnd, boolean quality) {
+		double fwhm = settings.oversampling;
+		CSI_FitCache.Entry entry = fitBackground(settings.fit, fitStart, fitEnd, settings.getSigma(), quality);
+		if (!settings.smoothCoefficients || fwhm <= 0)
+			return entry;
+		return new CSI_FitCache.Entry(entry.fit,
+				smoothCoefficients(entry.coeffs, fwhm, settings.medianSmoothing), entry.quality);
+	}
+
+	/*
+	 * Copy of coeffs with the per-pixel rows 0 and 1 smoothed over fwhm
+	 * pixels, by a Gaussian or, if median is set, a median of radius fwhm / 2.
+	 * Further rows are shared by all pixels and kept as they are.
+	 */
+	double[][] smoothCoefficients(double[][] coeffs, double fwhm, boolean median) {
+		int width = img.getWidth();
+		int height = img.getHeight();
+		double[][] smoothed = coeffs.clone();
+		CSI_GaussianFilter filter = new CSI_GaussianFilter(fwhm * CSI_GaussianFilter.FWHM_TO_SIGMA);
+		for (int r = 0; r < 2; r++) {
+			FloatProcessor ip = new FloatProcessor(width, height, coeffs[r]);
+			float[] map;
+			if (median) {
+				new RankFilters().rank(ip, fwhm / 2, RankFilters.MEDIAN);
+				map = (float[]) ip.getPixels();
+			} else {
+				ImageStack stack = new ImageStack(width, height);
+				stack.addSlice("", ip);
+				map = new float[width * height];
+				filter.filter(stack, 0, height, 0, 1, map, 1, 0);
+			}
+			smoothed[r] = new double[map.length];
+			for (int p = 0; p < map.length; p++)
+				smoothed[r][p] = map[p];
+		}
+		return smoothed;
+	}
+
+	/*
+	 * Fits the background of every pixel over [fitStart, fitEnd) with f, after a
+	 * Gaussian blur of sigma pixels when sigma > 0. Coefficients are indexed
+	 * width * j + i and must be evaluated with the entry's fit. Results are
+	 * shared through CSI_FitCache, so operations on an unchanged background
+	 * window skip the fit entirely. With quality set, the entry also holds
+	 * the fit quality maps.
+	 */
+	CSI_FitCache.Entry fitBackground(CSI_FitModel f, int fitStart, int fitEnd, double sigma, boolean quality) {
+		CSI_FitCache.Entry entry = CSI_FitCache.get(img, f.getName(), x, fitStart, fitEnd, sigma);
+		if (entry != null && (!quality || entry.quality != null))
+			return entry;
+
+		int width = img.getWidth();
+		int height = img.getHeight();
+		// The blur is applied to each tile as it is read
+		CSI_GaussianFilter filter = sigma > 0 ? new CSI_GaussianFilter(sigma) : null;
+
+		// Only the fit window is needed, one spectrum after the other
+		int n = width * height;
+		int s = fitEnd - fitStart;
+		int rows = tileRows(s);
+		double[] xWindow = Arrays.copyOfRange(x, fitStart, fitEnd);
+		CSI_FitQuality q = quality ? new CSI_FitQuality(n) : null;
+		double[][] coeffs = null;
+		float[] spectra;
+		// Fit a tile of rows at a time, unless the model shares parameters
+		// over the whole block. LCPL is tiled all the same: its exponents are
+		// picked first from the power law fits of every tile.
+		boolean lcpl = f instanceof CSI_LCPLFit;
+		if (rows < height && (lcpl || !f.sharesParameters())) {
+			spectra = new float[s * width * rows];
+			double[] exponents = null;
+			if (lcpl) {
+				double[] slopes = new double[n];
+				for (int j0 = 0; j0 < height; j0 += rows) {
+					int j1 = Math.min(height, j0 + rows);
+					readTile(filter, j0, j1, fitStart, fitEnd, spectra, s);
+					double[] c = new CSI_PowerFit().fit(xWindow, spectra, width * (j1 - j0), null)[1];
+					System.arraycopy(c, 0, slopes, width * j0, c.length);
+				}
+				exponents = CSI_LCPLFit.exponents(slopes);
+			}
+			coeffs = lcpl ? new double[][] { new double[n], new double[n], exponents } : new double[2][n];
+			for (int j0 = 0; j0 < height; j0 += rows) {
+				int j1 = Math.min(height, j0 + rows);
+				readTile(filter, j0, j1, fitStart, fitEnd, spectra, s);
+				CSI_FitQuality tq = quality ? new CSI_FitQuality(width * (j1 - j0)) : null;
+				double[][] c = lcpl ? ((CSI_LCPLFit) f).fit(xWindow, spectra, width * (j1 - j0), tq, exponents)
+						: f.fit(xWindow, spectra, width * (j1 - j0), tq);
+				System.arraycopy(c[0], 0, coeffs[0], width * j0, c[0].length);
+				System.arraycopy(c[1], 0, coeffs[1], width * j0, c[1].length);
+				if (q != null)
+					q.put(tq, width * j0);
+			}
+		}
+		if (coeffs == null) {
+			spectra = new float[s * n];
+			readTile(filter, 0, height, fitStart, fitEnd, spectra, s);
+			coeffs = f.fit(xWindow, spectra, n, q);
+		}
+		entry = new CSI_FitCache.Entry(f, coeffs, q);
+		CSI_FitCache.put(img, f.getName(), x, fitStart, fitEnd, sigma, entry);
+		return entry;
+	}
+
+	/*
+	 * Shows the quality maps of a background fit, with negative holding the
+	 * number of channels per pixel that went negative after subtraction.
+	 */
+	void showFitQuality(CSI_FitCache.Entry bg, float[] negative) {
+		ImagePlus imp = new ImagePlus("Background fit quality of " + img.getTitle(),
+				bg.quality.getStack(img.getWidth(), img.getHeight(), negative));
+		imp.setCalibration(img.getCalibration());
+		imp.show();
+	}
+
+	/*
+	 * The dataset with one spectrum after the other, or null if it is too
+	 * large to keep in memory, see CSI_CubeCache.
+	 */
+	float[] getCube() {
+		return CSI_CubeCache.get(img);
+	}
+
+	/*
+	 * Rows of pixels per tile, such that a tile of c channels per pixel takes
+	 * at most TILE_FRACTION of the memory available. In a job this is the
+	 * whole image if its plan is to work in memory, else the memory its
+	 * reservation left, see CSI_Preflight; outside of jobs it is the whole
+	 * image whenever it fits in the free memory.
+	 */
+	int tileRows(int c) {
+		int plan = CSI_Preflight.getRunningPlan();
+		if (plan == CSI_Preflight.IN_MEMORY)
+			return img.getHeight();
+		long free = plan < 0 ? IJ.maxMemory() - IJ.currentMemory() : CSI_Preflight.getAvailable();
+		long row = 4L * Math.max(c, 1) * img.getWidth();
+		return (int) Math.max(1, Math.min(img.getHeight(), (long) (free * TILE_FRACTION) / Math.max(row, 1)));
+	}
+
+	/*
+	 * Copies channels [start, end) of pixels [first, last) into dest, which
+	 * holds s channels per pixel from pixel first on, starting at channel
+	 * offset of each pixel.
+	 */
+	void readTile(int first, int last, int start, int end, float[] dest, int s, int offset) {
+		float[] cube = getCube();
+		if (cube == null) {
+			CSI_CubeCache.copy(img.getStack(), first, last, start, end, dest, s, offset);
+			return;
+		}
+		for (int p = first; p < last; p++) {
+			System.arraycopy(cube, p * size + start, dest, (p - first) * s + offset, end - start);
+		}
+	}
+
+	/*
+	 * As above for pixel rows [j0, j1), blurred by filter unless it is null.
+	 */
+	void readTile(CSI_GaussianFilter filter, int j0, int j1, int start, int end, float[] dest, int s) {
+		int width = img.getWidth();
+		if (filter == null)
+			readTile(width * j0, width * j1, start, end, dest, s, 0);
+		else
+			filter.filter(img.getStack(), j0, j1, start, end, dest, s, 0);
+	}
+
+	/*
+	 * Channels [start, end) of every pixel as a (channel x pixel) matrix,
+	 * with the background of fit subtracted unless fit is null. The matrix
+	 * is stored column by column, which is one spectrum after the other, so
+	 * it is filled straight from the tiles.
+	 */
+	DenseDoubleMatrix2D readMatrix(final int start, final int end, final CSI_FitModel fit, final double[][] coeffs) {
+		final int m = end - start;
+		final int width = img.getWidth();
+		final int height = img.getHeight();
+		final double[] data = new double[m * width * height];
+		final int rows = tileRows(m);
+		final float[] tile = new float[m * width * rows];
+		for (int j0 = 0; j0 < height; j0 += rows) {
+			final int first = width * j0;
+			int last = width * Math.min(height, j0 + rows);
+			readTile(first, last, start, end, tile, m, 0);
+			CSI_FitExecutor.forEachChunk(last - first, new CSI_FitExecutor.Chunk() {
+				public void run(int from, int to) {
+					for (int p = first + from; p < first + to; p++) {
+						for (int k = start, o = p * m, c = (p - first) * m; k < end; k++, o++, c++) {
+							data[o] = fit == null ? tile[c] : tile[c] - fit.getFitAtX(coeffs, p, x[k]);
+						}
+					}
+				}
+			});
+		}
+		return new DefaultDenseDoubleMatrix2D(data, m, width * height);
+	}
+
 	double[] getProfile() {
 		Roi roi = img.getRoi();
 		if (roi == null) {
 			return null;
 		}
+		Calibration cal = img.getCalibration();
+		// Rectangles are read from the summed-area tables once they are built
+		if (this.csi_Spectrum_Analyzer.rectangleIndex && roi.getType() == Roi.RECTANGLE
+				&& roi.getCornerDiameter() == 0 && !cal.calibrated()) {
+			double[] means = CSI_SummedAreaTable.getMeans(img, roi.getBounds());
+			if (means != null)
+				return means;
+		}
 		ImageStack stack = img.getStack();
 		double[] values = new double[size];
-		Calibration cal = img.getCalibration();
 		ImageProcessor ip;
 		ImageStatistics stats;
 		for (int i = 1; i <= size; i++) {
@@ -620,6 +975,53 @@ public class CSI_SpectrumData2D extends CSI_SpectrumData {
 		}
 	}
 
+	/*
+	 * The spectrum of the selection from the binned levels of the pyramid,
+	 * unless the summed-area tables give the exact one as quickly.
+	 */
+	double[] getPreviewProfile() {
+		Roi roi = img.getRoi();
+		if (roi == null || img.getCalibration().calibrated())
+			return null;
+		if (this.csi_Spectrum_Analyzer.rectangleIndex && roi.getType() == Roi.RECTANGLE
+				&& roi.getCornerDiameter() == 0 && CSI_SummedAreaTable.contains(img))
+			return null;
+		return getPyramid().getMeans(roi);
+	}
+
+	void updatePreview() {
+		if (this.csi_Spectrum_Analyzer.livePreview)
+			liveMap.request();
+	}
+
+	void stopLiveUpdates() {
+		super.stopLiveUpdates();
+		releasePrefixSums();
+		releasePyramid();
+		liveMap.stop();
+		liveMap.close();
+	}
+
+	/*
+	 * The pyramid of the current stack, which starts building if it has not;
+	 * a new one once the image has been edited.
+	 */
+	synchronized CSI_Pyramid getPyramid() {
+		if (pyramid == null || !pyramid.isValid()) {
+			if (pyramid != null)
+				pyramid.stop();
+			pyramid = new CSI_Pyramid(img);
+		}
+		pyramid.build();
+		return pyramid;
+	}
+
+	synchronized void releasePyramid() {
+		if (pyramid != null)
+			pyramid.stop();
+		pyramid = null;
+	}
+
 	void recalibrateImage() {
 
 		ImageStack ims = img.getStack();
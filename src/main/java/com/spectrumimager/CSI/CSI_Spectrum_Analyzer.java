@@ -78,22 +78,25 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 	CSI_SpectrumData state; // Image data class
 
 	// CSI_Spectrum_Analyzer state variables
-	boolean twoptcalib, isCalibrating, meanCentering = false, weightedPCA = false;
+	boolean twoptcalib, isCalibrating, meanCentering = false, weightedPCA = false, fitQuality = false,
+			fitResidual = false, smoothCoefficients = false, medianSmoothing = false, rectangleIndex = true,
+			livePreview = false, energySums = false;
 
 	// GUI Elements
 	JButton butIntegrate, butHCMIntegrate, butPCA, butSubtract, butCancelCalibration, butCalibrate;
 	ButtonGroup bgFit;
-	JRadioButton radFast, radOversampled;
+	JRadioButton radFast, radOversampled, radSmoothed;
 	JComboBox<String> comFit;
 	JSlider sldZoom, sldOffset, sldLeft, sldWidth, sldILeft, sldIWidth, sldCLeft, sldCRight;
 	Panel panButtons, panCalibrateButtons, panSliders, panCalibrateL, panCalibrateR, panOver;
 	Label labIntegrate, labSubtract, labCalibrate, labEnergy1, labEnergy2, labEnergy3, labEnergy4, labHover1, labHover2;
 	TextField txtLeftCalibration, txtRightCalibration, txtEnergyCalibration, txtLeft, txtWidth, txtILeft, txtIWidth,
 	txtOversampling;
-	JMenuItem miTwoPointCalibration, miOnePointCalibration, miAbout, miDoc, miChangeColorCSI, miChangeColorCornell,
+	JMenuItem miMapEdges, miSweep, miCancelJobs, miTwoPointCalibration, miOnePointCalibration, miAbout, miDoc, miChangeColorCSI, miChangeColorCornell,
 	miChangeColorCollegiate, miChangeColorCorporate;
 	JPopupMenu pm;
-	JCheckBoxMenuItem miScaleCounts, miMeanCentering, miWeightedPCA;
+	JCheckBoxMenuItem miScaleCounts, miMeanCentering, miWeightedPCA, miFitQuality,
+			miFitResidual, miMedianSmoothing, miRectangleIndex, miLivePreview, miEnergySums;
 	JPanel panRad = new JPanel(), panAll = new JPanel();
 	Color colZeroLine, colIntWindow, colSubtracted, colData, colDataFill, colBackFill, colBackgroundFit,
 	colBackgroundWindow;
@@ -245,11 +248,10 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 
 		panButtons = new Panel(new GridBagLayout());
 		panButtons.addMouseListener(new CSI_TestListener(this));
-		String[] fits = { "No Fit", "Constant", "Exponential", "Linear", "Power", "LCPL" };
 		comFit = new JComboBox<String>();
-		for (int i = 0; i < fits.length; i++)
-			comFit.addItem(fits[i]);
-		state.setFit(CSI_SpectrumData.NO_FIT);
+		for (CSI_FitModel model : CSI_FitModels.getModels())
+			comFit.addItem(model.getName());
+		state.setFit(CSI_FitModels.NO_FIT);
 		comFit.addItemListener(new CSI_TestListener(this));
 		comFit.addMouseListener(new CSI_TestListener(this));
 		GridBagConstraints c = new GridBagConstraints();
@@ -266,8 +268,13 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 		radOversampled.addActionListener(new CSI_TestListener(this));
 		radOversampled.addMouseListener(new CSI_TestListener(this));
 		bgFit.add(radOversampled);
+		radSmoothed = new JRadioButton("Smoothed", false);
+		radSmoothed.addActionListener(new CSI_TestListener(this));
+		radSmoothed.addMouseListener(new CSI_TestListener(this));
+		bgFit.add(radSmoothed);
 		panRad.add(radFast);
 		panRad.add(radOversampled);
+		panRad.add(radSmoothed);
 		c = new GridBagConstraints();
 		c.gridx = 1;
 		c.gridy = 1;
@@ -593,6 +600,30 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 		miWeightedPCA.addItemListener(new CSI_TestListener(this));
 		optionsMenu.add(miWeightedPCA);
 
+		miFitQuality = new JCheckBoxMenuItem("Show background fit quality maps.", false);
+		miFitQuality.addItemListener(new CSI_TestListener(this));
+		optionsMenu.add(miFitQuality);
+
+		miFitResidual = new JCheckBoxMenuItem("Show background fit residuals when subtracting.", false);
+		miFitResidual.addItemListener(new CSI_TestListener(this));
+		optionsMenu.add(miFitResidual);
+
+		miMedianSmoothing = new JCheckBoxMenuItem("Smooth fits with a median instead of a Gaussian.", false);
+		miMedianSmoothing.addItemListener(new CSI_TestListener(this));
+		optionsMenu.add(miMedianSmoothing);
+
+		miRectangleIndex = new JCheckBoxMenuItem("Index the data to show rectangle spectra quickly.", true);
+		miRectangleIndex.addItemListener(new CSI_TestListener(this));
+		optionsMenu.add(miRectangleIndex);
+
+		miLivePreview = new JCheckBoxMenuItem("Show a live preview of the map while moving the windows.", false);
+		miLivePreview.addItemListener(new CSI_TestListener(this));
+		optionsMenu.add(miLivePreview);
+
+		miEnergySums = new JCheckBoxMenuItem("Keep cumulative energy sums for fast integration.", false);
+		miEnergySums.addItemListener(new CSI_TestListener(this));
+		optionsMenu.add(miEnergySums);
+
 		JMenu colorMenu = new JMenu("Change color scheme.");
 		miChangeColorCSI = new JMenuItem("CSI Classic");
 		miChangeColorCSI.addActionListener(new CSI_TestListener(this));
@@ -619,6 +650,18 @@ public class CSI_Spectrum_Analyzer implements PlugInFilter {
 
 		pm.add(optionsMenu);
 
+		miMapEdges = new JMenuItem("Map several edges...");
+		miMapEdges.addActionListener(new CSI_TestListener(this));
+		pm.add(miMapEdges);
+
+		miSweep = new JMenuItem("Sweep the integration window...");
+		miSweep.addActionListener(new CSI_TestListener(this));
+		pm.add(miSweep);
+
+		miCancelJobs = new JMenuItem("Cancel running and queued operations");
+		miCancelJobs.addActionListener(new CSI_TestListener(this));
+		pm.add(miCancelJobs);
+
 		JMenu helpMenu = new JMenu("Help");
 		miAbout = new JMenuItem("About CSI: Cornell Spectrum Imager");
 		miAbout.addActionListener(new CSI_TestListener(this));
@@ -0,0 +1,109 @@
+package com.spectrumimager.CSI;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+/*
+ * Subtracts the fitted background from a spectrum image channel by channel.
+ * Each output slice is a float array written in one pass from the matching
+ * input slice, with the background of the least squares models evaluated
+ * from fx() values computed once per channel. Channels are shared between
+ * threads.
+ */
+class CSI_Subtractor {
+	private final ImageStack stack;
+	private final double[] x;
+	private final CSI_FitModel fit;
+	private final CSI_Fit lsq;
+	private final double[][] coeffs;
+	private final int width, height;
+
+	CSI_Subtractor(ImageStack stack, double[] x, CSI_FitModel fit, double[][] coeffs) {
+		this.stack = stack;
+		this.x = x;
+		this.fit = fit;
+		this.lsq = fit instanceof CSI_Fit ? (CSI_Fit) fit : null;
+		this.coeffs = coeffs;
+		this.width = stack.getWidth();
+		this.height = stack.getHeight();
+	}
+
+	/*
+	 * Float stack of every channel with the background subtracted from
+	 * channel start on; the channels before start are left at zero.
+	 */
+	ImageStack subtract(int start) {
+		return build(start, stack.getSize(), false);
+	}
+
+	/*
+	 * Float stack of the residuals of channels [start, end), in the space
+	 * the fit was done in (see CSI_FitModel.getResidual).
+	 */
+	ImageStack residual(int start, int end) {
+		return build(start, end, true);
+	}
+
+	private ImageStack build(final int start, int end, final boolean residual) {
+		int n = width * height;
+		final float[][] slices = new float[stack.getSize()][];
+		ImageStack out = new ImageStack(width, height);
+
+		for (int k = residual ? start : 0; k < end; k++)
+			slices[k] = new float[n];
+		if (stack.isVirtual()) {
+			// Slices of a virtual stack are loaded on every getPixels(), so
+			// they are read one at a time and split between threads by pixel
+			for (int k = start; k < end; k++) {
+				final int slice = k;
+				final Object pixels = stack.getPixels(k + 1);
+				CSI_FitExecutor.forEachChunk(n, new CSI_FitExecutor.Chunk() {
+					public void run(int from, int to) {
+						fill(slice, pixels, slices[slice], from, to, residual);
+					}
+				});
+			}
+		} else {
+			final int pixels = n;
+			CSI_FitExecutor.forEachChunk(end - start, 1, new CSI_FitExecutor.Chunk() {
+				public void run(int from, int to) {
+					for (int k = start + from; k < start + to; k++)
+						fill(k, stack.getPixels(k + 1), slices[k], 0, pixels, residual);
+				}
+			});
+		}
+		for (int k = residual ? start : 0; k < end; k++)
+			out.addSlice(stack.getSliceLabel(k + 1), new FloatProcessor(width, height, slices[k]));
+		return out;
+	}
+
+	/*
+	 * Writes pixels [from, to) of channel k into dest.
+	 */
+	private void fill(int k, Object pixels, float[] dest, int from, int to, boolean residual) {
+		float[] f = pixels instanceof float[] ? (float[]) pixels : null;
+		short[] h = pixels instanceof short[] ? (short[]) pixels : null;
+		byte[] b = pixels instanceof byte[] ? (byte[]) pixels : null;
+		float[] other = f == null && h == null && b == null
+				? (float[]) stack.getProcessor(k + 1).convertToFloat().getPixels() : null;
+		double xk = x[k], fxk = lsq != null ? lsq.fx(xk) : 0, v;
+		double[] c0 = coeffs[0], c1 = coeffs[1];
+
+		for (int p = from; p < to; p++) {
+			if (f != null)
+				v = f[p];
+			else if (h != null)
+				v = h[p] & 0xffff;
+			else if (b != null)
+				v = b[p] & 0xff;
+			else
+				v = other[p];
+			if (residual)
+				dest[p] = (float) fit.getResidual(coeffs, p, xk, v);
+			else if (lsq != null)
+				dest[p] = (float) (v - lsq.getFitAtFx(c0[p], c1[p], fxk));
+			else
+				dest[p] = (float) (v - fit.getFitAtX(coeffs, p, xk));
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package com.spectrumimager.CSI;
+
+import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import ij.IJ;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/*
+ * Summed-area tables of the open datasets, one per channel, so the mean
+ * spectrum of any rectangle takes four reads per channel whatever its size.
+ * The tables of a dataset are held in one array with the channels of each
+ * corner after one another (table[q * size + k] with q = (width + 1) * j + i
+ * the sum over pixels left of i and above j), so a spectrum is read from
+ * four runs. Tables are built on a background thread the first time they
+ * are asked for; until then, and for datasets whose tables would take more
+ * than MEMORY_FRACTION of ImageJ's memory or that hold values ImageJ leaves
+ * out of means (NaN and infinities), getMeans() returns null and the caller
+ * measures the slices itself. Tables are built only if CSI_Preflight can
+ * reserve their memory, and are dropped like the cubes of CSI_CubeCache.
+ */
+class CSI_SummedAreaTable implements ImageListener {
+	static final double MEMORY_FRACTION = 0.25;
+
+	private static final LinkedHashMap<Integer, Entry> tables = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+	// Threads building tables, and datasets whose tables cannot be used (as
+	// entries without a table)
+	private static final HashMap<Integer, Thread> building = new HashMap<Integer, Thread>();
+	private static final LinkedHashMap<Integer, Entry> unusable = new LinkedHashMap<Integer, Entry>();
+	private static long bytes;
+	private static CSI_SummedAreaTable listener;
+
+	private static class Entry {
+		final ImageStack stack;
+		final double[] table;
+		final int edits;
+
+		Entry(ImageStack stack, double[] table, int edits) {
+			this.stack = stack;
+			this.table = table;
+			this.edits = edits;
+		}
+	}
+
+	/*
+	 * Returns the mean spectrum of rectangle r of img, or null if its tables
+	 * are not ready, starting to build them if needed.
+	 */
+	static double[] getMeans(final ImagePlus img, Rectangle r) {
+		final ImageStack stack = img.getStack();
+		int width = stack.getWidth(), height = stack.getHeight(), size = stack.getSize();
+		Rectangle bounds = r.intersection(new Rectangle(width, height));
+		if (bounds.isEmpty())
+			return null;
+		double[] table;
+		synchronized (CSI_SummedAreaTable.class) {
+			Integer id = img.getID();
+			final int edits = CSI_EditCounter.getCount(img);
+			Entry entry = tables.get(id);
+			if (entry != null && (entry.stack != stack || entry.edits != edits)) {
+				remove(id);
+				entry = null;
+			}
+			if (entry == null) {
+				Entry u = unusable.get(id);
+				if (u != null && u.stack == stack && u.edits == edits || building.containsKey(id))
+					return null;
+				unusable.remove(id);
+				long need = 8L * (width + 1) * (height + 1) * size;
+				if (need > IJ.maxMemory() * MEMORY_FRACTION
+						|| (long) (width + 1) * (height + 1) * size > Integer.MAX_VALUE) {
+					unusable.put(id, new Entry(stack, null, edits));
+					return null;
+				}
+				// Asked again later if the memory is held by others now
+				if (!CSI_Preflight.tryReserve(need))
+					return null;
+				if (listener == null) {
+					listener = new CSI_SummedAreaTable();
+					CSI_EditCounter.addListener(listener);
+				}
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						build(img, stack, edits);
+					}
+				}, "CSI summed-area tables");
+				t.setPriority(Thread.MIN_PRIORITY);
+				t.setDaemon(true);
+				building.put(id, t);
+				t.start();
+				return null;
+			}
+			table = entry.table;
+		}
+
+		int i0 = bounds.x, i1 = bounds.x + bounds.width, j0 = bounds.y, j1 = bounds.y + bounds.height;
+		int a = ((width + 1) * j0 + i0) * size, b = ((width + 1) * j0 + i1) * size;
+		int c = ((width + 1) * j1 + i0) * size, d = ((width + 1) * j1 + i1) * size;
+		double n = (double) bounds.width * bounds.height;
+		double[] means = new double[size];
+		for (int k = 0; k < size; k++)
+			means[k] = (table[d + k] - table[b + k] - table[c + k] + table[a + k]) / n;
+		return means;
+	}
+
+	private static void build(ImagePlus img, final ImageStack stack, int edits) {
+		Integer id = img.getID();
+		long need = 8L * (stack.getWidth() + 1) * (stack.getHeight() + 1) * stack.getSize();
+		double[] table = null;
+		try {
+			table = sum(stack);
+		} catch (OutOfMemoryError e) {
+			table = null;
+		}
+		synchronized (CSI_SummedAreaTable.class) {
+			// Dropped while building if the image was closed or edited
+			boolean current = building.get(id) == Thread.currentThread();
+			if (current)
+				building.remove(id);
+			if (!current || table == null) {
+				CSI_Preflight.unreserve(need);
+				if (current)
+					unusable.put(id, new Entry(stack, null, edits));
+				return;
+			}
+			tables.put(id, new Entry(stack, table, edits));
+			bytes += 8L * table.length;
+			long cap = (long) (IJ.maxMemory() * MEMORY_FRACTION);
+			Iterator<Entry> it = tables.values().iterator();
+			while (bytes > cap && it.hasNext()) {
+				Entry e = it.next();
+				if (e.table == table)
+					continue;
+				bytes -= 8L * e.table.length;
+				CSI_Preflight.unreserve(8L * e.table.length);
+				it.remove();
+			}
+		}
+	}
+
+	static synchronized boolean contains(ImagePlus img) {
+		Entry entry = tables.get(img.getID());
+		return entry != null && entry.stack == img.getStack() && entry.edits == CSI_EditCounter.getCount(img);
+	}
+
+	/*
+	 * The tables of stack, or null if a value is not finite. Channels are
+	 * shared between threads, except for virtual stacks, which are read one
+	 * slice at a time.
+	 */
+	private static double[] sum(final ImageStack stack) {
+		final int width = stack.getWidth(), height = stack.getHeight(), size = stack.getSize();
+		final double[] table = new double[(width + 1) * (height + 1) * size];
+		final boolean[] finite = { true };
+		CSI_FitExecutor.Chunk chunk = new CSI_FitExecutor.Chunk() {
+			public void run(int from, int to) {
+				double[] row = new double[width];
+				for (int k = from; k < to && finite[0]; k++) {
+					Object pixels = stack.getPixels(k + 1);
+					ImageProcessor ip = pixels instanceof float[] || pixels instanceof short[]
+							|| pixels instanceof byte[] ? null : stack.getProcessor(k + 1);
+					for (int j = 0; j < height; j++) {
+						read(pixels, ip, width * j, row);
+						double line = 0;
+						int o = ((width + 1) * (j + 1) + 1) * size + k;
+						int above = o - (width + 1) * size;
+						for (int i = 0; i < width; i++, o += size, above += size) {
+							if (Double.isNaN(row[i]) || Double.isInfinite(row[i])) {
+								finite[0] = false;
+								return;
+							}
+							line += row[i];
+							table[o] = table[above] + line;
+						}
+					}
+				}
+			}
+		};
+		if (stack.isVirtual())
+			chunk.run(0, size);
+		else
+			CSI_FitExecutor.forEachChunk(size, 1, chunk);
+		return finite[0] ? table : null;
+	}
+
+	/*
+	 * Copies width pixels from index p of a slice into row.
+	 */
+	private static void read(Object pixels, ImageProcessor ip, int p, double[] row) {
+		if (pixels instanceof float[]) {
+			float[] f = (float[]) pixels;
+			for (int i = 0; i < row.length; i++)
+				row[i] = f[p + i];
+		} else if (pixels instanceof short[]) {
+			short[] h = (short[]) pixels;
+			for (int i = 0; i < row.length; i++)
+				row[i] = h[p + i] & 0xffff;
+		} else if (pixels instanceof byte[]) {
+			byte[] b = (byte[]) pixels;
+			for (int i = 0; i < row.length; i++)
+				row[i] = b[p + i] & 0xff;
+		} else {
+			for (int i = 0; i < row.length; i++)
+				row[i] = ip.getf(p + i);
+		}
+	}
+
+	private static void remove(int imageID) {
+		Entry e = tables.remove(imageID);
+		if (e != null) {
+			bytes -= 8L * e.table.length;
+			CSI_Preflight.unreserve(8L * e.table.length);
+		}
+	}
+
+	static synchronized void invalidate(ImagePlus img) {
+		remove(img.getID());
+		building.remove(img.getID());
+		unusable.remove(img.getID());
+	}
+
+	public void imageOpened(ImagePlus imp) {
+	}
+
+	public void imageClosed(ImagePlus imp) {
+		invalidate(imp);
+	}
+
+	// As for the cube cache, only edits invalidate the tables, not scrolling.
+	public void imageUpdated(ImagePlus imp) {
+		synchronized (CSI_SummedAreaTable.class) {
+			int edits = CSI_EditCounter.getCount(imp);
+			Entry entry = tables.get(imp.getID()), u = unusable.get(imp.getID());
+			if (entry != null && entry.edits != edits || u != null && u.edits != edits)
+				invalidate(imp);
+		}
+	}
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -233,16 +234,43 @@ public class CSI_TIA_Reader implements PlugIn {
 				int Z_DEPTH = data.readInt(); // ArrayLength
 				data.close();
 
-				float[][][] spectra =  new float[Z_DEPTH][DIMENSION_SIZE[0]][DIMENSION_SIZE[1]];
-				for (int j=0; j<DIMENSION_SIZE[1]; j++)
-					for (int i=0; i<DIMENSION_SIZE[0]; i++)
-						if (i*DIMENSION_SIZE[1] + j<NUMBER_IMAGES) {
-							IJ.showProgress(1.0*(j*DIMENSION_SIZE[0] + i + 1)/(DIMENSION_SIZE[0]*DIMENSION_SIZE[1]));
-							OpenSpectra(path, DATA_OFFSET[j*DIMENSION_SIZE[0] + i], spectra, i, j);
-						}
-				ImageStack ims = new ImageStack(DIMENSION_SIZE[0], DIMENSION_SIZE[1]);
-				for (int k=0; k<Z_DEPTH; k++)
-					ims.addSlice((Z_OFFSET - (Z_WIDTH * Z_ELEMENT) + (k * Z_WIDTH))+" ev", new FloatProcessor(spectra[k]));
+				ImageStack ims;
+				CSI_MappedStack mapped = null;
+				if (CSI_MappedStack.shouldMap(4L * Z_DEPTH * DIMENSION_SIZE[0] * DIMENSION_SIZE[1]))
+					mapped = CSI_MappedStack.create(DIMENSION_SIZE[0], DIMENSION_SIZE[1], Z_DEPTH);
+				if (mapped != null) {
+					// Too large for the heap: the spectra go into a mapped file, read
+					// a block of rows at a time so every slice is written in runs
+					int rows = (int) Math.max(1, Math.min(DIMENSION_SIZE[1], (64L << 20) / (4L * Z_DEPTH * DIMENSION_SIZE[0])));
+					float[] block = new float[rows * DIMENSION_SIZE[0] * Z_DEPTH];
+					float[] spectrum = new float[Z_DEPTH];
+					for (int j0=0; j0<DIMENSION_SIZE[1]; j0+=rows) {
+						int j1 = Math.min(j0 + rows, DIMENSION_SIZE[1]);
+						Arrays.fill(block, 0);
+						for (int j=j0; j<j1; j++)
+							for (int i=0; i<DIMENSION_SIZE[0]; i++)
+								if (i*DIMENSION_SIZE[1] + j<NUMBER_IMAGES) {
+									IJ.showProgress(1.0*(j*DIMENSION_SIZE[0] + i + 1)/(DIMENSION_SIZE[0]*DIMENSION_SIZE[1]));
+									readSpectrum(path, DATA_OFFSET[j*DIMENSION_SIZE[0] + i], spectrum);
+									System.arraycopy(spectrum, 0, block, ((j - j0)*DIMENSION_SIZE[0] + i)*Z_DEPTH, Z_DEPTH);
+								}
+						mapped.setSpectra(j0*DIMENSION_SIZE[0], (j1 - j0)*DIMENSION_SIZE[0], block);
+					}
+					for (int k=0; k<Z_DEPTH; k++)
+						mapped.setSliceLabel((Z_OFFSET - (Z_WIDTH * Z_ELEMENT) + (k * Z_WIDTH))+" ev", k + 1);
+					ims = mapped;
+				} else {
+					float[][][] spectra =  new float[Z_DEPTH][DIMENSION_SIZE[0]][DIMENSION_SIZE[1]];
+					for (int j=0; j<DIMENSION_SIZE[1]; j++)
+						for (int i=0; i<DIMENSION_SIZE[0]; i++)
+							if (i*DIMENSION_SIZE[1] + j<NUMBER_IMAGES) {
+								IJ.showProgress(1.0*(j*DIMENSION_SIZE[0] + i + 1)/(DIMENSION_SIZE[0]*DIMENSION_SIZE[1]));
+								OpenSpectra(path, DATA_OFFSET[j*DIMENSION_SIZE[0] + i], spectra, i, j);
+							}
+					ims = new ImageStack(DIMENSION_SIZE[0], DIMENSION_SIZE[1]);
+					for (int k=0; k<Z_DEPTH; k++)
+						ims.addSlice((Z_OFFSET - (Z_WIDTH * Z_ELEMENT) + (k * Z_WIDTH))+" ev", new FloatProcessor(spectra[k]));
+				}
 
 				imp = new ImagePlus(path.substring(path.lastIndexOf("/")+1), ims);
 
@@ -498,14 +526,20 @@ public class CSI_TIA_Reader implements PlugIn {
 	}
 
 	private void OpenSpectra(String path, int byteoffset, float[][][] spectra, int i, int j) throws Exception {
+		float[] spectrum = new float[spectra.length];
+		readSpectrum(path, byteoffset, spectrum);
+		for (int k = 0; k < spectrum.length; k++)
+			spectra[k][i][j] = spectrum[k];
+	}
+
+	// Reads the spectrum data element at byteoffset into spectrum
+	private void readSpectrum(String path, int byteoffset, float[] spectrum) throws Exception {
 		//variables
 		double PIXEL_WIDTH; //CalibrationDelta
 		double CALIBRATION_OFFSET; //CalibrationOffset
 		int CALIBRATION_ELEMENT; //CalibrationElement
 		short DATA_TYPE; //DataType
 		int DATA_DEPTH; //ArrayLength
-		int IMAGE_WIDTH = spectra[0].length;
-		int IMAGE_HEIGHT =  spectra[0][0].length;
 
 		// reading the calibration data
 		LEDataInputStream data = new LEDataInputStream(open(path));
@@ -519,27 +553,27 @@ public class CSI_TIA_Reader implements PlugIn {
 
 		//opening of the spectra
 		int count = 0;
-		while (count < DATA_DEPTH) {
+		while (count < Math.min(DATA_DEPTH, spectrum.length)) {
 
 			switch (DATA_TYPE) {
 			case 1:
 				return;
 			case 2:
-				spectra[count][i][j] = data.readShort();
+				spectrum[count] = data.readShort();
 				break;
 			case 3:
-				spectra[count][i][j] = data.readInt();
+				spectrum[count] = data.readInt();
 				break;
 			case 4:
 				return;
 			case 5:
-				spectra[count][i][j] = data.readShort();
+				spectrum[count] = data.readShort();
 				break;
 			case 6:
-				spectra[count][i][j] = data.readInt();
+				spectrum[count] = data.readInt();
 				break;
 			case 7:
-				spectra[count][i][j] = data.readFloat();
+				spectrum[count] = data.readFloat();
 				break;
 			case 8:
 				return;
@@ -170,22 +170,103 @@ class CSI_TestListener implements ActionListener, ItemListener, MouseListener {
 			this.csi_Spectrum_Analyzer.colBackgroundWindow = new Color(20, 150, 210);
 			this.csi_Spectrum_Analyzer.state.updateProfile();
 		} else if (b == this.csi_Spectrum_Analyzer.butIntegrate) { // If integrate button was clicked
-			if (this.csi_Spectrum_Analyzer.comFit.getSelectedItem().equals("No Fit")) {
-				this.csi_Spectrum_Analyzer.state.integrate(this.csi_Spectrum_Analyzer.state.X0, this.csi_Spectrum_Analyzer.state.X1, this.csi_Spectrum_Analyzer.state.iX0, this.csi_Spectrum_Analyzer.state.iX1).show();
-			} else
-				this.csi_Spectrum_Analyzer.state.fitToModel(this.csi_Spectrum_Analyzer.state.X0, this.csi_Spectrum_Analyzer.state.X1, this.csi_Spectrum_Analyzer.state.iX0, this.csi_Spectrum_Analyzer.state.iX1).show(); // integrate
-																					// data
-			System.gc();
+			final CSI_SpectrumData data = this.csi_Spectrum_Analyzer.state;
+			final int X0 = data.X0, X1 = data.X1, iX0 = data.iX0, iX1 = data.iX1;
+			final CSI_FitSettings settings = new CSI_FitSettings(this.csi_Spectrum_Analyzer, data.fit);
+			final boolean noFit = settings.isNoFit();
+			CSI_JobQueue.submit(new CSI_JobQueue.Job("Integrate", data) {
+				CSI_Preflight preflight() {
+					if (!(data instanceof CSI_SpectrumData2D))
+						return null;
+					CSI_SpectrumData2D data2D = (CSI_SpectrumData2D) data;
+					if (noFit)
+						return CSI_Preflight.integrate(data2D, X0, X1, iX0, iX1, settings);
+					return CSI_Preflight.fitToModel(data2D, X0, X1, iX0, iX1, settings);
+				}
+
+				void execute() {
+					if (noFit) {
+						data.integrate(X0, X1, iX0, iX1, settings).show();
+					} else
+						data.fitToModel(X0, X1, iX0, iX1, settings).show(); // integrate data
+				}
+			});
 		} else if (b == this.csi_Spectrum_Analyzer.butPCA) {
-			if (this.csi_Spectrum_Analyzer.weightedPCA)
-				this.csi_Spectrum_Analyzer.state.weightedPCA(this.csi_Spectrum_Analyzer.state.X0, this.csi_Spectrum_Analyzer.state.X1, this.csi_Spectrum_Analyzer.state.iX0, this.csi_Spectrum_Analyzer.state.iX1);
-			else
-				this.csi_Spectrum_Analyzer.state.PCA(this.csi_Spectrum_Analyzer.state.X0, this.csi_Spectrum_Analyzer.state.X1, this.csi_Spectrum_Analyzer.state.iX0, this.csi_Spectrum_Analyzer.state.iX1);
-			System.gc();
+			final CSI_SpectrumData data = this.csi_Spectrum_Analyzer.state;
+			final int X0 = data.X0, X1 = data.X1, iX0 = data.iX0, iX1 = data.iX1;
+			final boolean weighted = this.csi_Spectrum_Analyzer.weightedPCA;
+			final CSI_FitSettings settings = new CSI_FitSettings(this.csi_Spectrum_Analyzer, data.fit);
+			CSI_JobQueue.submit(new CSI_JobQueue.Job("PCA", data) {
+				CSI_Preflight preflight() {
+					if (!(data instanceof CSI_SpectrumData2D))
+						return null;
+					CSI_SpectrumData2D data2D = (CSI_SpectrumData2D) data;
+					return CSI_Preflight.PCA(data2D, X0, X1, iX0, iX1, settings, weighted);
+				}
+
+				void execute() {
+					if (weighted)
+						data.weightedPCA(X0, X1, iX0, iX1, settings);
+					else
+						data.PCA(X0, X1, iX0, iX1, settings);
+				}
+			});
 		} else if (b == this.csi_Spectrum_Analyzer.butSubtract) { // If subtract button was clicked
-			ImagePlus s = this.csi_Spectrum_Analyzer.state.subtract(this.csi_Spectrum_Analyzer.state.X0, this.csi_Spectrum_Analyzer.state.X1);
-			s.show(); // subtract data
-			System.gc();
+			final CSI_SpectrumData data = this.csi_Spectrum_Analyzer.state;
+			final int X0 = data.X0, X1 = data.X1;
+			final CSI_FitSettings settings = new CSI_FitSettings(this.csi_Spectrum_Analyzer, data.fit);
+			CSI_JobQueue.submit(new CSI_JobQueue.Job("Background subtract", data) {
+				CSI_Preflight preflight() {
+					if (!(data instanceof CSI_SpectrumData2D))
+						return null;
+					CSI_SpectrumData2D data2D = (CSI_SpectrumData2D) data;
+					return CSI_Preflight.subtract(data2D, X0, X1, settings);
+				}
+
+				void execute() {
+					data.subtract(X0, X1, settings).show(); // subtract data
+				}
+			});
+		} else if (b == this.csi_Spectrum_Analyzer.miMapEdges) {
+			if (this.csi_Spectrum_Analyzer.state instanceof CSI_SpectrumData2D) {
+				final CSI_SpectrumData2D data = (CSI_SpectrumData2D) this.csi_Spectrum_Analyzer.state;
+				final CSI_Edge[] edges = data.askEdges();
+				if (edges != null) {
+					final CSI_FitSettings settings = new CSI_FitSettings(this.csi_Spectrum_Analyzer, data.fit);
+					CSI_JobQueue.submit(new CSI_JobQueue.Job("Map several edges", data) {
+						CSI_Preflight preflight() {
+							return CSI_Preflight.mapEdges(data, edges, settings);
+						}
+
+						void execute() {
+							data.mapEdges(edges, settings).show();
+						}
+					});
+				}
+			} else
+				IJ.showMessage("Map several edges", "Edge maps need a spectrum image.");
+		} else if (b == this.csi_Spectrum_Analyzer.miSweep) {
+			if (this.csi_Spectrum_Analyzer.state instanceof CSI_SpectrumData2D) {
+				final CSI_SpectrumData2D data = (CSI_SpectrumData2D) this.csi_Spectrum_Analyzer.state;
+				final int X0 = data.X0, X1 = data.X1;
+				final int[] windows = data.askSweep();
+				if (windows != null) {
+					final CSI_FitSettings settings = new CSI_FitSettings(this.csi_Spectrum_Analyzer, data.fit);
+					CSI_JobQueue.submit(new CSI_JobQueue.Job("Sweep the integration window", data) {
+						CSI_Preflight preflight() {
+							return CSI_Preflight.sweep(data, X0, X1, windows[0], windows[1], windows[2], windows[3],
+									settings);
+						}
+
+						void execute() {
+							data.sweep(X0, X1, windows[0], windows[1], windows[2], windows[3], settings).show();
+						}
+					});
+				}
+			} else
+				IJ.showMessage("Sweep the integration window", "Sweeps need a spectrum image.");
+		} else if (b == this.csi_Spectrum_Analyzer.miCancelJobs) {
+			CSI_JobQueue.cancelAll();
 		} else if (b == this.csi_Spectrum_Analyzer.butCalibrate) {// If calibrate button was clicked
 			this.csi_Spectrum_Analyzer.state.recalibrate(); // calibrate data
 		} else if (b == this.csi_Spectrum_Analyzer.butCancelCalibration) {// If cancel calibration
@@ -225,9 +306,11 @@ class CSI_TestListener implements ActionListener, ItemListener, MouseListener {
 				this.csi_Spectrum_Analyzer.txtIWidth.setText(String.format("%.1f", this.csi_Spectrum_Analyzer.state.x[this.csi_Spectrum_Analyzer.state.iX1] - this.csi_Spectrum_Analyzer.state.x[this.csi_Spectrum_Analyzer.state.iX0]));
 			}
 		} else if (b == this.csi_Spectrum_Analyzer.radFast) {
+			this.csi_Spectrum_Analyzer.smoothCoefficients = false;
 			this.csi_Spectrum_Analyzer.txtOversampling.setText("0.0");
 			this.csi_Spectrum_Analyzer.panOver.setVisible(false);
-		} else if (b == this.csi_Spectrum_Analyzer.radOversampled) {
+		} else if (b == this.csi_Spectrum_Analyzer.radOversampled || b == this.csi_Spectrum_Analyzer.radSmoothed) {
+			this.csi_Spectrum_Analyzer.smoothCoefficients = b == this.csi_Spectrum_Analyzer.radSmoothed;
 			this.csi_Spectrum_Analyzer.txtOversampling.setText("1.0");
 			this.csi_Spectrum_Analyzer.panOver.setVisible(true);
 			this.csi_Spectrum_Analyzer.state.pwin.pack();
@@ -243,23 +326,31 @@ class CSI_TestListener implements ActionListener, ItemListener, MouseListener {
 			this.csi_Spectrum_Analyzer.meanCentering = this.csi_Spectrum_Analyzer.miMeanCentering.getState();
 		} else if (b == this.csi_Spectrum_Analyzer.miWeightedPCA) {
 			this.csi_Spectrum_Analyzer.weightedPCA = this.csi_Spectrum_Analyzer.miWeightedPCA.getState();
+		} else if (b == this.csi_Spectrum_Analyzer.miFitQuality) {
+			this.csi_Spectrum_Analyzer.fitQuality = this.csi_Spectrum_Analyzer.miFitQuality.getState();
+		} else if (b == this.csi_Spectrum_Analyzer.miFitResidual) {
+			this.csi_Spectrum_Analyzer.fitResidual = this.csi_Spectrum_Analyzer.miFitResidual.getState();
+		} else if (b == this.csi_Spectrum_Analyzer.miMedianSmoothing) {
+			this.csi_Spectrum_Analyzer.medianSmoothing = this.csi_Spectrum_Analyzer.miMedianSmoothing.getState();
+		} else if (b == this.csi_Spectrum_Analyzer.miRectangleIndex) {
+			this.csi_Spectrum_Analyzer.rectangleIndex = this.csi_Spectrum_Analyzer.miRectangleIndex.getState();
+		} else if (b == this.csi_Spectrum_Analyzer.miEnergySums) {
+			this.csi_Spectrum_Analyzer.energySums = this.csi_Spectrum_Analyzer.miEnergySums.getState();
+			if (!this.csi_Spectrum_Analyzer.energySums && this.csi_Spectrum_Analyzer.state instanceof CSI_SpectrumData2D)
+				((CSI_SpectrumData2D) this.csi_Spectrum_Analyzer.state).releasePrefixSums();
+		} else if (b == this.csi_Spectrum_Analyzer.miLivePreview) {
+			this.csi_Spectrum_Analyzer.livePreview = this.csi_Spectrum_Analyzer.miLivePreview.getState();
+			if (this.csi_Spectrum_Analyzer.state instanceof CSI_SpectrumData2D) {
+				CSI_SpectrumData2D data = (CSI_SpectrumData2D) this.csi_Spectrum_Analyzer.state;
+				data.liveMap.close();
+				data.updatePreview();
+			}
 		} else if (b == this.csi_Spectrum_Analyzer.comFit) { // If combo box (drop-down menu) is
 									// clicked
-			String fitType = this.csi_Spectrum_Analyzer.comFit.getSelectedItem().toString();
-			if (fitType.equals("No Fit")) { // Set fit state
-				this.csi_Spectrum_Analyzer.state.setFit(CSI_SpectrumData.NO_FIT); // to combo box selection
-			} else if (fitType.equals("Constant")) {
-				this.csi_Spectrum_Analyzer.state.setFit(CSI_SpectrumData.CONSTANT_FIT);
-			} else if (fitType.equals("Linear")) {
-				this.csi_Spectrum_Analyzer.state.setFit(CSI_SpectrumData.LINEAR_FIT);
-			} else if (fitType.equals("Exponential")) {
-				this.csi_Spectrum_Analyzer.state.setFit(CSI_SpectrumData.EXPONENTIAL_FIT);
-			} else if (fitType.equals("Power")) {
-				this.csi_Spectrum_Analyzer.state.setFit(CSI_SpectrumData.POWER_FIT);
-			} else if (fitType.equals("LCPL")) {
-				this.csi_Spectrum_Analyzer.state.setFit(CSI_SpectrumData.LCPL_FIT);
-			}
+			// Set fit state to combo box selection
+			this.csi_Spectrum_Analyzer.state.setFit(this.csi_Spectrum_Analyzer.comFit.getSelectedItem().toString());
 			this.csi_Spectrum_Analyzer.state.updateProfile();
+			this.csi_Spectrum_Analyzer.state.updatePreview();
 		}
 	}
 
@@ -339,6 +430,11 @@ class CSI_TestListener implements ActionListener, ItemListener, MouseListener {
 			this.csi_Spectrum_Analyzer.labHover1.setText("Perform locally averaged background fits.");
 			this.csi_Spectrum_Analyzer.labHover2.setForeground(Color.red);
 			this.csi_Spectrum_Analyzer.labHover2.setText("(Warning: Only use if probe size larger than pixel sampling.)");
+		} else if (b == this.csi_Spectrum_Analyzer.radSmoothed) {
+			this.csi_Spectrum_Analyzer.labHover1.setForeground(Color.black);
+			this.csi_Spectrum_Analyzer.labHover1.setText("Perform standard background fits, then locally average the fitted backgrounds.");
+			this.csi_Spectrum_Analyzer.labHover2.setForeground(Color.red);
+			this.csi_Spectrum_Analyzer.labHover2.setText("(Warning: Only use if probe size larger than pixel sampling.)");
 		} else if (b == this.csi_Spectrum_Analyzer.sldLeft) {
 			this.csi_Spectrum_Analyzer.labHover1.setForeground(Color.black);
 			this.csi_Spectrum_Analyzer.labHover1.setText("Position background window start energy.");
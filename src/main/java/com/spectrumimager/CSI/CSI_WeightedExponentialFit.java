@@ -0,0 +1,14 @@
+package com.spectrumimager.CSI;
+
+/*
+ * Exponential fit weighted for counting (Poisson) noise.
+ */
+public class CSI_WeightedExponentialFit extends CSI_ExponentialFit {
+	public String getName() {
+		return "Exponential (weighted)";
+	}
+
+	public double[][] fit(double[] xWindow, float[] spectra, int count, CSI_FitQuality quality) {
+		return fitWeighted(xWindow, spectra, count, quality);
+	}
+}
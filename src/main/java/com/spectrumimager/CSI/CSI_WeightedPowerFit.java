@@ -0,0 +1,14 @@
+package com.spectrumimager.CSI;
+
+/*
+ * Power law fit weighted for counting (Poisson) noise.
+ */
+public class CSI_WeightedPowerFit extends CSI_PowerFit {
+	public String getName() {
+		return "Power (weighted)";
+	}
+
+	public double[][] fit(double[] xWindow, float[] spectra, int count, CSI_FitQuality quality) {
+		return fitWeighted(xWindow, spectra, count, quality);
+	}
+}
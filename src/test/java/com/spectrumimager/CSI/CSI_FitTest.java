@@ -0,0 +1,144 @@
+package com.spectrumimager.CSI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.ujmp.core.DenseMatrix;
+import org.ujmp.core.Matrix;
+
+/*
+ * The closed-form fit of CSI_Fit against the least squares solve it
+ * replaced, which built the design matrix [1 fx] and the matrix of fy and
+ * called UJMP's solve().
+ */
+public class CSI_FitTest {
+	private static final int COUNT = 50;
+
+	/*
+	 * Spectra of count pixels over xWindow, each a*x^-r (or a*exp(-r*x))
+	 * with a few percent of noise.
+	 */
+	private static float[] spectra(double[] xWindow, boolean power, long seed) {
+		Random random = new Random(seed);
+		int s = xWindow.length;
+		float[] spectra = new float[COUNT * s];
+		for (int p = 0; p < COUNT; p++) {
+			double a = 1E3 + 1E5 * random.nextDouble();
+			double r = power ? 1 + 4 * random.nextDouble() : 1E-3 + 1E-2 * random.nextDouble();
+			for (int k = 0; k < s; k++) {
+				double y = power ? a * Math.pow(xWindow[k] / xWindow[0], -r) : a * Math.exp(-r * (xWindow[k] - xWindow[0]));
+				spectra[p * s + k] = (float) (y * (1 + 0.05 * random.nextGaussian()));
+			}
+		}
+		return spectra;
+	}
+
+	private static double[] window(double x0, double dx, int s) {
+		double[] x = new double[s];
+		for (int k = 0; k < s; k++)
+			x[k] = x0 + k * dx;
+		return x;
+	}
+
+	/*
+	 * The fit as it was solved before, with rows the channels and columns
+	 * the pixels.
+	 */
+	private static Matrix solve(CSI_Fit fit, double[] xWindow, float[] spectra) {
+		int s = xWindow.length;
+		Matrix m = DenseMatrix.Factory.zeros(s, 2);
+		Matrix n = DenseMatrix.Factory.zeros(s, COUNT);
+		for (int k = 0; k < s; k++) {
+			m.setAsDouble(1.0, k, 0);
+			m.setAsDouble(fit.fx(xWindow[k]), k, 1);
+			for (int p = 0; p < COUNT; p++)
+				n.setAsDouble(fit.fy(spectra[p * s + k]), k, p);
+		}
+		return m.solve(n);
+	}
+
+	private static void assertSameFit(CSI_Fit fit, double[] xWindow, float[] spectra) {
+		double[][] coeffs = fit.fit(xWindow, spectra, COUNT, null);
+		Matrix expected = solve(fit, xWindow, spectra);
+		for (int p = 0; p < COUNT; p++) {
+			double c0 = expected.getAsDouble(0, p), c1 = expected.getAsDouble(1, p);
+			assertEquals(c1, coeffs[1][p], 1E-9 * Math.max(1, Math.abs(c1)));
+			// The offset is large against its error at large fx, so compare
+			// the fits themselves
+			for (int k = 0; k < xWindow.length; k++) {
+				double y = fit.getFitAtX(c0, c1, xWindow[k]);
+				assertEquals(y, fit.getFitAtX(coeffs, p, xWindow[k]), 1E-8 * y);
+			}
+		}
+	}
+
+	@Test
+	public void testPower() {
+		double[] x = window(280, 0.5, 40);
+		assertSameFit(new CSI_PowerFit(), x, spectra(x, true, 1));
+	}
+
+	@Test
+	public void testPowerFarFromZero() {
+		double[] x = window(8000, 1, 100);
+		assertSameFit(new CSI_PowerFit(), x, spectra(x, true, 2));
+	}
+
+	@Test
+	public void testExponential() {
+		double[] x = window(400, 0.25, 60);
+		assertSameFit(new CSI_ExponentialFit(), x, spectra(x, false, 3));
+	}
+
+	@Test
+	public void testTwoChannels() {
+		double[] x = window(100, 1, 2);
+		assertSameFit(new CSI_PowerFit(), x, spectra(x, true, 4));
+		assertSameFit(new CSI_ExponentialFit(), x, spectra(x, false, 5));
+	}
+
+	/*
+	 * When every channel has the same fx the solve failed on the rank
+	 * deficient design matrix. Any least squares solution then fits the mean
+	 * of fy; the closed form takes the one with no slope.
+	 */
+	@Test
+	public void testDegenerateWindow() {
+		double[] x = { 300, 300, 300, 300 };
+		for (CSI_Fit fit : new CSI_Fit[] { new CSI_PowerFit(), new CSI_ExponentialFit() }) {
+			float[] spectra = spectra(window(300, 1, 4), true, 6);
+			double[][] coeffs = fit.fit(x, spectra, COUNT, null);
+			try {
+				solve(fit, x, spectra);
+				fail("solve() took a rank deficient window");
+			} catch (RuntimeException e) {
+			}
+			for (int p = 0; p < COUNT; p++) {
+				double mean = 0;
+				for (int k = 0; k < 4; k++)
+					mean += fit.fy(spectra[4 * p + k]) / 4;
+				assertEquals(0, coeffs[1][p], 0);
+				assertEquals(Math.exp(mean), fit.getFitAtX(coeffs, p, 300), 1E-9 * Math.exp(mean));
+			}
+		}
+	}
+
+	@Test
+	public void testConstantSpectra() {
+		double[] x = window(500, 1, 20);
+		float[] spectra = new float[COUNT * 20];
+		Arrays.fill(spectra, 250);
+		for (CSI_Fit fit : new CSI_Fit[] { new CSI_PowerFit(), new CSI_ExponentialFit() }) {
+			assertSameFit(fit, x, spectra);
+			double[][] coeffs = fit.fit(x, spectra, COUNT, null);
+			for (int p = 0; p < COUNT; p++) {
+				assertEquals(0, coeffs[1][p], 1E-9);
+				assertEquals(250, fit.getFitAtX(coeffs, p, 510), 1E-9);
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.spectrumimager.CSI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/*
+ * The tile blur of oversampled fits against ImageJ's Gaussian Blur, which
+ * the fits used to run on a copy of the image.
+ */
+public class CSI_GaussianFilterTest {
+	private static final int WIDTH = 23, HEIGHT = 17, SIZE = 4;
+
+	private static ImageStack stack(long seed) {
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		for (int k = 0; k < SIZE; k++) {
+			float[] pixels = new float[WIDTH * HEIGHT];
+			for (int p = 0; p < pixels.length; p++)
+				pixels[p] = 100 + 1000 * random.nextFloat();
+			stack.addSlice("", new FloatProcessor(WIDTH, HEIGHT, pixels));
+		}
+		return stack;
+	}
+
+	/*
+	 * The whole stack blurred by CSI_GaussianFilter, one tile of rows at a
+	 * time, as slices.
+	 */
+	private static float[][] filter(ImageStack stack, double sigma, int rows) {
+		CSI_GaussianFilter filter = new CSI_GaussianFilter(sigma);
+		float[][] slices = new float[SIZE][WIDTH * HEIGHT];
+		for (int j0 = 0; j0 < HEIGHT; j0 += rows) {
+			int j1 = Math.min(HEIGHT, j0 + rows);
+			float[] tile = new float[WIDTH * (j1 - j0) * SIZE];
+			filter.filter(stack, j0, j1, 0, SIZE, tile, SIZE, 0);
+			for (int p = 0; p < WIDTH * (j1 - j0); p++) {
+				for (int k = 0; k < SIZE; k++)
+					slices[k][WIDTH * j0 + p] = tile[p * SIZE + k];
+			}
+		}
+		return slices;
+	}
+
+	/*
+	 * The stack blurred by Gaussian Blur, at the accuracy it uses for float
+	 * data.
+	 */
+	private static float[][] blur(ImageStack stack, double sigma) {
+		float[][] slices = new float[SIZE][];
+		for (int k = 0; k < SIZE; k++) {
+			ImageProcessor ip = stack.getProcessor(k + 1).duplicate();
+			new GaussianBlur().blurGaussian(ip, sigma, sigma, CSI_GaussianFilter.ACCURACY);
+			slices[k] = (float[]) ip.getPixels();
+		}
+		return slices;
+	}
+
+	private static void assertClose(float[][] expected, float[][] actual, double tolerance) {
+		for (int k = 0; k < SIZE; k++) {
+			for (int p = 0; p < WIDTH * HEIGHT; p++)
+				assertEquals("slice " + k + " pixel " + p, expected[k][p], actual[k][p], tolerance);
+		}
+	}
+
+	@Test
+	public void testGaussianBlur() {
+		ImageStack stack = stack(1);
+		for (double sigma : new double[] { 0.5, 1.2, 2.5 }) {
+			float[][] expected = blur(stack, sigma);
+			// The kernels are cut alike but Gaussian Blur also smooths the
+			// ends of its kernel
+			assertClose(expected, filter(stack, sigma, HEIGHT), 0.05);
+			assertClose(expected, filter(stack, sigma, 5), 0.05);
+		}
+	}
+
+	/*
+	 * Subtract and PCA ran Gaussian Blur with "radius=" the oversampled
+	 * sigma, an old macro key that it reads as 2.5 sigma, so their blur was
+	 * 2.5 times narrower than that of integrate. All three now blur with
+	 * the oversampling times FWHM_TO_SIGMA, as integrate did.
+	 */
+	@Test
+	public void testSubtractWidth() {
+		ImageStack stack = stack(2);
+		double fwhm = 6, sigma = fwhm * CSI_GaussianFilter.FWHM_TO_SIGMA;
+		float[][] now = filter(stack, sigma, 4);
+		assertClose(blur(stack, sigma), now, 0.05);
+		float[][] before = blur(stack, sigma / 2.5);
+		double change = 0;
+		for (int p = 0; p < WIDTH * HEIGHT; p++)
+			change = Math.max(change, Math.abs(before[0][p] - now[0][p]));
+		assertTrue(change > 50);
+	}
+
+	/*
+	 * Beyond the edges the image takes the value of the nearest edge pixel,
+	 * here against the kernel applied directly.
+	 */
+	@Test
+	public void testEdges() {
+		ImageStack stack = stack(3);
+		double sigma = 3;
+		CSI_GaussianFilter filter = new CSI_GaussianFilter(sigma);
+		int radius = (int) Math.ceil(sigma * Math.sqrt(-2 * Math.log(CSI_GaussianFilter.ACCURACY)));
+		double[] kernel = new double[2 * radius + 1];
+		double sum = 0;
+		for (int t = -radius; t <= radius; t++)
+			sum += kernel[t + radius] = Math.exp(-0.5 * t * t / (sigma * sigma));
+		float[][] actual = filter(stack, sigma, 4);
+		for (int k = 0; k < SIZE; k++) {
+			float[] pixels = (float[]) stack.getPixels(k + 1);
+			for (int j = 0; j < HEIGHT; j++) {
+				for (int i = 0; i < WIDTH; i++) {
+					double expected = 0;
+					for (int u = -radius; u <= radius; u++) {
+						for (int v = -radius; v <= radius; v++) {
+							int x = Math.min(Math.max(i + u, 0), WIDTH - 1);
+							int y = Math.min(Math.max(j + v, 0), HEIGHT - 1);
+							expected += kernel[u + radius] * kernel[v + radius] * pixels[y * WIDTH + x];
+						}
+					}
+					assertEquals(expected / (sum * sum), actual[k][j * WIDTH + i], 1E-3);
+				}
+			}
+		}
+		// A constant slice stays constant up to the edges
+		float[] constant = new float[WIDTH * HEIGHT];
+		Arrays.fill(constant, 500);
+		ImageStack flat = new ImageStack(WIDTH, HEIGHT);
+		flat.addSlice("", new FloatProcessor(WIDTH, HEIGHT, constant));
+		float[] tile = new float[WIDTH * HEIGHT];
+		filter.filter(flat, 0, HEIGHT, 0, 1, tile, 1, 0);
+		for (float v : tile)
+			assertEquals(500, v, 1E-3);
+	}
+
+	@Test
+	public void testShortData() {
+		ImageStack stack = stack(4);
+		ImageStack shorts = new ImageStack(WIDTH, HEIGHT);
+		for (int k = 1; k <= SIZE; k++)
+			shorts.addSlice("", stack.getProcessor(k).convertToShort(false));
+		ImageStack floats = new ImageStack(WIDTH, HEIGHT);
+		for (int k = 1; k <= SIZE; k++)
+			floats.addSlice("", ((ShortProcessor) shorts.getProcessor(k)).convertToFloat());
+		assertClose(filter(floats, 1.5, HEIGHT), filter(shorts, 1.5, 3), 1E-3);
+	}
+}
@@ -0,0 +1,153 @@
+package com.spectrumimager.CSI;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.ujmp.core.DenseMatrix;
+import org.ujmp.core.Matrix;
+
+/*
+ * The LCPL exponents against the sorted percentiles they were taken from
+ * before, and the shared QR solve against a direct solve of each block.
+ */
+public class CSI_LCPLFitTest {
+	/*
+	 * A block of count spectra a x^-2 + b x^-4 over 40 channels from 150,
+	 * with a little noise so that the single power laws spread.
+	 */
+	private static float[] block(double[] x, int count, long seed) {
+		Random random = new Random(seed);
+		int s = x.length;
+		float[] spectra = new float[count * s];
+		for (int p = 0; p < count; p++) {
+			double a = 1E6 * (1 + random.nextDouble()), b = 1E10 * random.nextDouble();
+			for (int k = 0; k < s; k++) {
+				double y = a * Math.pow(x[k], -2) + b * Math.pow(x[k], -4);
+				spectra[p * s + k] = (float) (y * (1 + 0.01 * random.nextGaussian()));
+			}
+		}
+		return spectra;
+	}
+
+	private static double[] window() {
+		double[] x = new double[40];
+		for (int k = 0; k < x.length; k++)
+			x[k] = 150 + k;
+		return x;
+	}
+
+	/*
+	 * The exponents as they were taken, from the fully sorted slopes.
+	 */
+	private static double[] sorted(double[] slopes) {
+		double[] a = slopes.clone();
+		Arrays.sort(a);
+		int kMin = (int) (a.length * CSI_LCPLFit.MIN), kMax = (int) (a.length * CSI_LCPLFit.MAX);
+		return new double[] { a[kMin], Math.min(a[kMax], 0) };
+	}
+
+	@Test
+	public void testSelect() {
+		Random random = new Random(1);
+		for (int n = 1; n < 40; n++) {
+			for (int trial = 0; trial < 20; trial++) {
+				double[] a = new double[n];
+				// Few distinct values, so most are duplicates
+				for (int i = 0; i < n; i++)
+					a[i] = trial % 2 == 0 ? random.nextInt(3) : random.nextGaussian();
+				double[] b = a.clone();
+				Arrays.sort(b);
+				for (int k = 0; k < n; k++)
+					assertEquals(b[k], CSI_LCPLFit.select(a.clone(), 0, n - 1, k), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testExponents() {
+		Random random = new Random(2);
+		for (int n = 1; n < 12; n++) {
+			double[] slopes = new double[n];
+			for (int i = 0; i < n; i++)
+				slopes[i] = -1 - 4 * random.nextDouble();
+			assertEquals(sorted(slopes)[0], CSI_LCPLFit.exponents(slopes.clone())[0], 0);
+			assertEquals(sorted(slopes)[1], CSI_LCPLFit.exponents(slopes.clone())[1], 0);
+		}
+		double[] same = new double[7];
+		Arrays.fill(same, -3);
+		assertEquals(-3, CSI_LCPLFit.exponents(same)[0], 0);
+		assertEquals(-3, CSI_LCPLFit.exponents(same)[1], 0);
+		double[] positive = { 0.5, 1, 2, 3, 4 };
+		assertEquals(0, CSI_LCPLFit.exponents(positive)[1], 0);
+	}
+
+	/*
+	 * The whole fit against the power law slopes sorted and the design
+	 * matrix [x^R1 x^R2] solved by UJMP for every pixel.
+	 */
+	private static void assertSameFit(double[] x, float[] spectra, int count) {
+		int s = x.length;
+		double[] slopes = new CSI_PowerFit().fit(x, spectra, count, null)[1];
+		double[] R = sorted(slopes);
+		double[][] coeffs = new CSI_LCPLFit().fit(x, spectra, count, null);
+		assertEquals(R[0], coeffs[2][0], 0);
+		assertEquals(R[1], coeffs[2][1], 0);
+
+		Matrix m = DenseMatrix.Factory.zeros(s, 2);
+		Matrix n = DenseMatrix.Factory.zeros(s, count);
+		for (int k = 0; k < s; k++) {
+			m.setAsDouble(Math.pow(x[k], R[0]), k, 0);
+			m.setAsDouble(Math.pow(x[k], R[1]), k, 1);
+			for (int p = 0; p < count; p++)
+				n.setAsDouble(spectra[p * s + k], k, p);
+		}
+		Matrix expected = m.solve(n);
+		for (int p = 0; p < count; p++) {
+			double c0 = expected.getAsDouble(0, p), c1 = expected.getAsDouble(1, p);
+			assertEquals(c0, coeffs[0][p], 1E-6 * Math.abs(c0));
+			assertEquals(c1, coeffs[1][p], 1E-6 * Math.abs(c1));
+		}
+	}
+
+	@Test
+	public void testFit() {
+		double[] x = window();
+		assertSameFit(x, block(x, 200, 3), 200);
+	}
+
+	@Test
+	public void testSmallBlocks() {
+		double[] x = window();
+		for (int count = 2; count < 5; count++)
+			assertSameFit(x, block(x, count, 4 + count), count);
+	}
+
+	/*
+	 * A single pixel, or pixels of the same spectrum, give equal exponents,
+	 * which the solve could not take: the fit is then that power law alone.
+	 */
+	@Test
+	public void testEqualExponents() {
+		double[] x = window();
+		int s = x.length;
+		float[] spectra = new float[3 * s];
+		for (int p = 0; p < 3; p++) {
+			for (int k = 0; k < s; k++)
+				spectra[p * s + k] = (float) (1E6 * Math.pow(x[k], -3));
+		}
+		for (int count = 1; count <= 3; count++) {
+			double[][] coeffs = new CSI_LCPLFit().fit(x, spectra, count, null);
+			assertEquals(coeffs[2][0], coeffs[2][1], 0);
+			assertEquals(-3, coeffs[2][0], 1E-4);
+			for (int p = 0; p < count; p++) {
+				assertEquals(0, coeffs[1][p], 0);
+				for (int k = 0; k < s; k++)
+					assertEquals(spectra[p * s + k], new CSI_LCPLFit().getFitAtX(coeffs, p, x[k]),
+							1E-4 * spectra[p * s + k]);
+			}
+		}
+	}
+}
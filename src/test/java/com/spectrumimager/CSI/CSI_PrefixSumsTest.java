@@ -0,0 +1,94 @@
+package com.spectrumimager.CSI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+/*
+ * The window sums of CSI_PrefixSums against the channels summed directly.
+ */
+public class CSI_PrefixSumsTest {
+	private static final int WIDTH = 13, HEIGHT = 11, SIZE = 20;
+
+	private static ImagePlus image(int type, long seed) {
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		int n = WIDTH * HEIGHT;
+		for (int k = 0; k < SIZE; k++) {
+			if (type == 0) {
+				float[] pixels = new float[n];
+				for (int p = 0; p < n; p++)
+					pixels[p] = (float) (1E3 * random.nextGaussian());
+				stack.addSlice("", new FloatProcessor(WIDTH, HEIGHT, pixels));
+			} else if (type == 1) {
+				short[] pixels = new short[n];
+				// Over 32767, which must not read as negative
+				for (int p = 0; p < n; p++)
+					pixels[p] = (short) (30000 + random.nextInt(35000));
+				stack.addSlice("", new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+			} else {
+				byte[] pixels = new byte[n];
+				random.nextBytes(pixels);
+				stack.addSlice("", new ByteProcessor(WIDTH, HEIGHT, pixels));
+			}
+		}
+		return new ImagePlus("", stack);
+	}
+
+	/*
+	 * Every window [from, to), the ones ending at the last channel included.
+	 */
+	private static void assertSums(ImagePlus img) {
+		ImageStack stack = img.getStack();
+		CSI_PrefixSums sums = CSI_PrefixSums.build(img);
+		assertNotNull(sums);
+		assertTrue(sums.isValid());
+		for (int from = 0; from <= SIZE; from++) {
+			for (int to = from; to <= SIZE; to++) {
+				double[] a = sums.getPlane(from), b = sums.getPlane(to);
+				for (int p = 0; p < WIDTH * HEIGHT; p++) {
+					double expected = 0;
+					for (int k = from; k < to; k++)
+						expected += stack.getProcessor(k + 1).getf(p);
+					assertEquals(expected, b[p] - a[p], 1E-9 * Math.max(1, Math.abs(expected)));
+				}
+			}
+		}
+		sums.release();
+		assertFalse(sums.isValid());
+		assertNull(sums.getPlane(0));
+	}
+
+	@Test
+	public void testFloat() {
+		assertSums(image(0, 1));
+	}
+
+	@Test
+	public void testShort() {
+		assertSums(image(1, 2));
+	}
+
+	@Test
+	public void testByte() {
+		assertSums(image(2, 3));
+	}
+
+	@Test
+	public void testBytes() {
+		ImagePlus img = image(0, 4);
+		assertEquals(8L * WIDTH * HEIGHT * (SIZE + 1), CSI_PrefixSums.bytes(img));
+	}
+}
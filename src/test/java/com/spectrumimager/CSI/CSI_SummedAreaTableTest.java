@@ -0,0 +1,104 @@
+package com.spectrumimager.CSI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.awt.Rectangle;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Measurements;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
+
+/*
+ * The mean spectra of CSI_SummedAreaTable against the slice statistics
+ * the profile was measured from before.
+ */
+public class CSI_SummedAreaTableTest {
+	private static final int WIDTH = 31, HEIGHT = 19, SIZE = 12;
+
+	private static final Rectangle[] RECTANGLES = { new Rectangle(3, 4, 10, 7), new Rectangle(0, 0, WIDTH, HEIGHT),
+			new Rectangle(WIDTH - 1, HEIGHT - 1, 1, 1), new Rectangle(-5, -3, 9, 8),
+			new Rectangle(WIDTH - 4, HEIGHT - 2, 10, 10), new Rectangle(-2, 5, WIDTH + 4, 3) };
+
+	private static ImagePlus image(boolean shorts, long seed) {
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		for (int k = 0; k < SIZE; k++) {
+			if (shorts) {
+				short[] pixels = new short[WIDTH * HEIGHT];
+				// Over 32767, which must not read as negative
+				for (int p = 0; p < pixels.length; p++)
+					pixels[p] = (short) (30000 + random.nextInt(35000));
+				stack.addSlice("", new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+			} else {
+				float[] pixels = new float[WIDTH * HEIGHT];
+				for (int p = 0; p < pixels.length; p++)
+					pixels[p] = (float) (1E4 * random.nextGaussian());
+				stack.addSlice("", new FloatProcessor(WIDTH, HEIGHT, pixels));
+			}
+		}
+		return new ImagePlus("", stack);
+	}
+
+	/*
+	 * The means once the tables, built in the background, are ready, giving
+	 * up after tries of 10 ms.
+	 */
+	private static double[] means(ImagePlus img, Rectangle r, int tries) throws InterruptedException {
+		double[] means = CSI_SummedAreaTable.getMeans(img, r);
+		for (int i = 0; means == null && i < tries; i++) {
+			Thread.sleep(10);
+			means = CSI_SummedAreaTable.getMeans(img, r);
+		}
+		return means;
+	}
+
+	private static void assertMeans(ImagePlus img) throws InterruptedException {
+		ImageStack stack = img.getStack();
+		for (Rectangle r : RECTANGLES) {
+			double[] means = means(img, r, 500);
+			assertNotNull(means);
+			assertEquals(SIZE, means.length);
+			// Every channel, the last one included
+			for (int k = 0; k < SIZE; k++) {
+				ImageProcessor ip = stack.getProcessor(k + 1);
+				ip.setRoi(r);
+				double expected = ImageStatistics.getStatistics(ip, Measurements.MEAN, null).mean;
+				assertEquals("channel " + k + " of " + r, expected, means[k],
+						1E-9 * Math.max(1, Math.abs(expected)));
+			}
+		}
+		assertNull(CSI_SummedAreaTable.getMeans(img, new Rectangle(WIDTH, 0, 5, 5)));
+		CSI_SummedAreaTable.invalidate(img);
+	}
+
+	@Test
+	public void testFloat() throws InterruptedException {
+		assertMeans(image(false, 1));
+	}
+
+	@Test
+	public void testShort() throws InterruptedException {
+		assertMeans(image(true, 2));
+	}
+
+	/*
+	 * ImageJ leaves NaNs out of means, which the tables cannot, so they are
+	 * never used for such data.
+	 */
+	@Test
+	public void testNaN() throws InterruptedException {
+		ImagePlus img = image(false, 3);
+		((float[]) img.getStack().getPixels(SIZE))[5] = Float.NaN;
+		assertNull(means(img, RECTANGLES[0], 50));
+		CSI_SummedAreaTable.invalidate(img);
+	}
+}
@@ -0,0 +1,163 @@
+package com.spectrumimager.CSI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * The weighted fits against the Poisson maximum likelihood fit, found here
+ * by Newton's method run to convergence rather than for IRLS_PASSES.
+ */
+public class CSI_WeightedFitTest {
+	private static final int COUNT = 40;
+
+	private static int poisson(Random random, double mean) {
+		double limit = Math.exp(-mean), product = random.nextDouble();
+		int n = 0;
+		while (product > limit) {
+			product *= random.nextDouble();
+			n++;
+		}
+		return n;
+	}
+
+	private static double[] window(double x0, int s) {
+		double[] x = new double[s];
+		for (int k = 0; k < s; k++)
+			x[k] = x0 + k;
+		return x;
+	}
+
+	/*
+	 * Poisson counts of a power law falling from about top counts by a
+	 * third to a half over the window.
+	 */
+	private static float[] sample(double[] x, double top, long seed) {
+		Random random = new Random(seed);
+		int s = x.length;
+		float[] spectra = new float[COUNT * s];
+		for (int p = 0; p < COUNT; p++) {
+			double r = 2 + 2 * random.nextDouble();
+			double scale = top * (0.5 + random.nextDouble());
+			for (int k = 0; k < s; k++)
+				spectra[p * s + k] = poisson(random, scale * Math.pow(x[k] / x[0], -r));
+		}
+		return spectra;
+	}
+
+	/*
+	 * The maximum of sum(y eta - exp(eta)) over eta = c0 + c1 fx, with the
+	 * log-likelihood's own Newton steps, halved while they do not improve it.
+	 */
+	private static double[] mle(CSI_Fit fit, double[] x, float[] spectra, int p) {
+		int s = x.length;
+		double a = 0, b = 0;
+		double[] fx = new double[s];
+		double mean = 0;
+		for (int k = 0; k < s; k++) {
+			fx[k] = fit.fx(x[k]);
+			mean += fx[k] / s;
+		}
+		for (int k = 0; k < s; k++) {
+			fx[k] -= mean;
+			a += Math.max(spectra[p * s + k], 0) / (double) s;
+		}
+		a = Math.log(a);
+		for (int i = 0; i < 200; i++) {
+			double g0 = 0, g1 = 0, h00 = 0, h01 = 0, h11 = 0;
+			for (int k = 0; k < s; k++) {
+				double mu = Math.exp(a + b * fx[k]), r = spectra[p * s + k] - mu;
+				g0 += r;
+				g1 += r * fx[k];
+				h00 += mu;
+				h01 += mu * fx[k];
+				h11 += mu * fx[k] * fx[k];
+			}
+			double det = h00 * h11 - h01 * h01;
+			double da = (h11 * g0 - h01 * g1) / det, db = (h00 * g1 - h01 * g0) / det;
+			double l = likelihood(spectra, p, s, fx, a, b), step = 1;
+			while (step > 1E-6 && likelihood(spectra, p, s, fx, a + step * da, b + step * db) < l)
+				step /= 2;
+			a += step * da;
+			b += step * db;
+		}
+		return new double[] { a - b * mean, b };
+	}
+
+	private static double likelihood(float[] spectra, int p, int s, double[] fx, double a, double b) {
+		double l = 0;
+		for (int k = 0; k < s; k++)
+			l += spectra[p * s + k] * (a + b * fx[k]) - Math.exp(a + b * fx[k]);
+		return l;
+	}
+
+	private static void assertMaximumLikelihood(CSI_Fit fit, double[] x, float[] spectra, double tolerance) {
+		double[][] coeffs = fit.fit(x, spectra, COUNT, null);
+		for (int p = 0; p < COUNT; p++) {
+			double[] expected = mle(fit, x, spectra, p);
+			assertEquals(expected[1], coeffs[1][p], tolerance * Math.abs(expected[1]));
+			for (int k = 0; k < x.length; k++) {
+				double y = fit.getFitAtX(expected[0], expected[1], x[k]);
+				assertEquals(y, fit.getFitAtX(coeffs, p, x[k]), tolerance * y);
+			}
+		}
+	}
+
+	@Test
+	public void testHighDose() {
+		double[] x = window(300, 50);
+		assertMaximumLikelihood(new CSI_WeightedPowerFit(), x, sample(x, 1000, 1), 1E-6);
+		assertMaximumLikelihood(new CSI_WeightedExponentialFit(), x, sample(x, 1000, 2), 1E-6);
+	}
+
+	/*
+	 * About a count per channel, with many channels empty. The fixed number
+	 * of passes stops within a few parts in a thousand of the maximum here.
+	 */
+	@Test
+	public void testLowDose() {
+		double[] x = window(300, 50);
+		float[] spectra = sample(x, 1.5, 3);
+		int zeros = 0;
+		for (float y : spectra)
+			zeros += y == 0 ? 1 : 0;
+		assertTrue(zeros > spectra.length / 10);
+		assertMaximumLikelihood(new CSI_WeightedPowerFit(), x, spectra, 5E-3);
+		assertMaximumLikelihood(new CSI_WeightedExponentialFit(), x, sample(x, 1.5, 4), 5E-3);
+	}
+
+	/*
+	 * Dark-subtracted data has negative counts, which the log of the
+	 * unweighted fit cannot take.
+	 */
+	@Test
+	public void testNegativeCounts() {
+		double[] x = window(300, 50);
+		float[] spectra = sample(x, 20, 5);
+		for (int i = 0; i < spectra.length; i++)
+			spectra[i] -= 2;
+		assertMaximumLikelihood(new CSI_WeightedPowerFit(), x, spectra, 1E-3);
+	}
+
+	/*
+	 * No counts in total, or fewer than the dark subtracted, fit no
+	 * background.
+	 */
+	@Test
+	public void testEmpty() {
+		double[] x = window(300, 50);
+		float[] spectra = new float[COUNT * x.length];
+		for (int i = COUNT * x.length / 2; i < spectra.length; i++)
+			spectra[i] = i % 3 - 1.5f;
+		for (CSI_Fit fit : new CSI_Fit[] { new CSI_WeightedPowerFit(), new CSI_WeightedExponentialFit() }) {
+			double[][] coeffs = fit.fit(x, spectra, COUNT, null);
+			for (int p = 0; p < COUNT; p++) {
+				for (int k = 0; k < x.length; k++)
+					assertEquals(0, fit.getFitAtX(coeffs, p, x[k]), 0);
+			}
+		}
+	}
+}